@@ -17,13 +17,24 @@ import java.util.Arrays;
  * +---------+-----+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
  * |    8    |  64 |                                           data size                                           |
  * +---------+-----+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
- * |         |     |                       | A| S| F|              |                                               |
- * |    12   |  96 |       data offset     | C| Y| I|    zeros     |                      data                     |
- * |         |     |                       | K| N| N|              |        (starting at data offset octet)        |
- * +---------+-----+-----------------------+--+--+--+--------------+-----------------------------------------------+
- * |   ...   | ... |                                              ...                                              |
+ * |         |     |                       | A| S| F|  |  window   |                                               |
+ * |    12   |  96 |       data offset     | C| Y| I| 0|  scale    |                     window                    |
+ * |         |     |                       | K| N| N|  |           |                                               |
+ * +---------+-----+-----------------------+--+--+--+--+-----------+-----------------------------------------------+
+ * |   ...   | ... |                         options (up to data offset octet), then data                          |
  * +---------+-----+-----------------------------------------------------------------------------------------------+
  * </code></pre>
+ *
+ * The window is the number of bytes the sender of the segment is ready to receive, shifted right
+ * by the window scale. Unlike in TCP the scale travels in every segment, so it needn't be negotiated.
+ *
+ * Options are encoded as in TCP: a kind octet followed by a length octet that counts the whole option
+ * (except for kinds {@link #END_OF_OPTIONS} and {@link #NO_OPERATION} that are one octet long).
+ * The only option known is {@link #SACK_OPTION} carrying the left and the right edges
+ * of up to {@link #MAX_SACK_BLOCKS} blocks of data received out of order (RFC 2018).
+ *
+ * A segment either owns an array of bytes or is a view over a part of a {@link ByteBuffer},
+ * possibly a direct one, so a received datagram can be parsed where it has been received.
  */
 public class TCPSegment {
     private static int off = 0;
@@ -33,42 +44,66 @@ public class TCPSegment {
     private static final int DATA_SIZE          = off = off + len; static {len = 4;}
     private static final int DATA_OFFSET        = off = off + len; static {len = 1;}
     private static final int FLAGS              = off = off + len; static {len = 1;}
+    private static final int WINDOW             = off = off + len; static {len = 2;}
 
-    private static final int DATA_OFFSET_MIN    = off;
-    public static final int HEADER_SIZE         = DATA_OFFSET_MIN + 1;
+    private static final int DATA_OFFSET_MIN    = off + len;
+    public static final int HEADER_SIZE         = DATA_OFFSET_MIN;
     public static final byte ACK_BITMAP         = (byte) 0b10000000;
     public static final byte SYN_BITMAP         = (byte) 0b01000000;
     public static final byte FIN_BITMAP         = (byte) 0b00100000;
+    private static final byte WINDOW_SCALE_BITMAP = (byte) 0b00001111;
+    public static final int MAX_WINDOW_SCALE    = 14;
+    private static final int MAX_WINDOW_FIELD   = 0xffff;
 
-    private ByteBuffer buffer;
-    private byte[] bytes;
+    public static final byte END_OF_OPTIONS     = 0;
+    public static final byte NO_OPERATION       = 1;
+    public static final byte SACK_OPTION        = 5;
+    public static final int MAX_SACK_BLOCKS     = 4;
+    private static final int SACK_BLOCK_SIZE    = 8;
+    private static final int[] NO_SACK_BLOCKS   = new int[0];
+
+    private final ByteBuffer buffer; // position is always 0 and limit is the size of the segment
 
     public TCPSegment() {
         this(0);
     }
 
     public TCPSegment(int capacity) {
-        this(new byte[capacity + HEADER_SIZE]);
-        Arrays.fill(bytes, (byte) 0);
-        setDataOffset(DATA_OFFSET_MIN);
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates a segment with room for {@code optionsSize} bytes of options between the header and the data.
+     */
+    public TCPSegment(int capacity, int optionsSize) {
+        this(new byte[capacity + HEADER_SIZE + optionsSize]);
+        setDataOffset(DATA_OFFSET_MIN + optionsSize);
     }
 
+    /**
+     * Creates a copy of the {@code other} segment that owns its bytes.
+     */
     public TCPSegment(TCPSegment other) {
-        this(other.bytes.clone());
+        this(other.copyBytes());
     }
 
     public TCPSegment(byte[] bytes) {
-        if (bytes.length < HEADER_SIZE) {
-            throw new IllegalArgumentException("Byte array too small: " + bytes.length + " < " + HEADER_SIZE);
-        }
-        this.bytes = bytes;
-        this.buffer = ByteBuffer.wrap(this.bytes);
+        this(ByteBuffer.wrap(bytes));
     }
 
     public TCPSegment(byte[] bytes, int offset, int length) {
-        this.bytes = new byte[length];
-        System.arraycopy(bytes, offset, this.bytes, 0, length);
-        this.buffer = ByteBuffer.wrap(this.bytes);
+        this(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    /**
+     * Creates a view over the bytes of the {@code buffer} between its position and limit.
+     * The bytes aren't copied, so the segment changes if the buffer does.
+     */
+    public TCPSegment(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer too small: " + buffer.remaining() + " < " + HEADER_SIZE);
+        }
+        this.buffer = buffer.slice();
     }
 
     public boolean isACK () {
@@ -99,20 +134,22 @@ public class TCPSegment {
     }
 
     public byte getFlags() {
-        return bytes[FLAGS];
+        return buffer.get(FLAGS);
     }
 
     public TCPSegment setFlags(byte flags) {
-        bytes[FLAGS] = flags;
+        buffer.put(FLAGS, flags);
         return this;
     }
 
     public byte[] getHeader() {
-        return Arrays.copyOfRange(bytes, 0, HEADER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        buffer.duplicate().get(header);
+        return header;
     }
 
     public TCPSegment setHeader(byte[] header) {
-        System.arraycopy(header, 0, bytes, 0, header.length);
+        buffer.duplicate().put(header);
         return this;
     }
 
@@ -126,15 +163,102 @@ public class TCPSegment {
     }
 
     public byte[] getData() {
-        int offset = getDataOffset();
-        return Arrays.copyOfRange(bytes, offset, offset + dataSize());
+        byte[] data = new byte[dataSize()];
+        getData(0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Copies {@code length} bytes of data starting at {@code offset} from the beginning of the data into {@code dst}.
+     */
+    public void getData(int offset, byte[] dst, int dstOffset, int length) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(getDataOffset() + offset);
+        data.get(dst, dstOffset, length);
     }
 
     public TCPSegment setData(byte[] data) {
-        System.arraycopy(data, 0, this.bytes, HEADER_SIZE, data.length);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(getDataOffset());
+        dst.put(data);
+        setDataSize(data.length);
+        return this;
+    }
+
+    /**
+     * @return the advertised window in bytes
+     */
+    public int getWindow() {
+        return (buffer.getShort(WINDOW) & MAX_WINDOW_FIELD) << (buffer.get(FLAGS) & WINDOW_SCALE_BITMAP);
+    }
+
+    /**
+     * Advertises the {@code window} with the smallest scale it fits in, rounding it down
+     * to a multiple of {@code 2^scale}. Windows too big even for {@link #MAX_WINDOW_SCALE} are clamped.
+     */
+    public TCPSegment setWindow(int window) {
+        int scale = 0;
+        while (scale < MAX_WINDOW_SCALE && window >>> scale > MAX_WINDOW_FIELD) {
+            ++scale;
+        }
+        buffer.putShort(WINDOW, (short) Math.min(window >>> scale, MAX_WINDOW_FIELD));
+        buffer.put(FLAGS, (byte) (buffer.get(FLAGS) & ~WINDOW_SCALE_BITMAP | scale));
+        return this;
+    }
+
+    /**
+     * @return SACK blocks as pairs of sequence numbers: the left edge of a block (its first byte)
+     *     followed by its right edge (the byte that follows the block), empty if there is no SACK option
+     */
+    public int[] getSACKBlocks() {
+        int end = Math.min(getDataOffset(), size());
+        int i = HEADER_SIZE;
+        while (i < end && buffer.get(i) != END_OF_OPTIONS) {
+            if (buffer.get(i) == NO_OPERATION) {
+                ++i;
+                continue;
+            }
+            if (i + 1 >= end) break;
+            int length = buffer.get(i + 1) & 0xff;
+            if (length < 2 || i + length > end) break;
+            if (buffer.get(i) == SACK_OPTION) {
+                int[] blocks = new int[(length - 2) / SACK_BLOCK_SIZE * 2];
+                for (int j = 0; j < blocks.length; ++j) {
+                    blocks[j] = buffer.getInt(i + 2 + j * 4);
+                }
+                return blocks;
+            }
+            i += length;
+        }
+        return NO_SACK_BLOCKS;
+    }
+
+    /**
+     * Writes the SACK option into the options area, which must have been reserved
+     * with {@link #sackOptionSize(int)} bytes at least.
+     * @param blocks pairs of left and right edges as returned by {@link #getSACKBlocks()}
+     */
+    public TCPSegment setSACKBlocks(int[] blocks) {
+        if (blocks.length == 0) return this;
+        int size = sackOptionSize(blocks.length / 2);
+        if (getDataOffset() - HEADER_SIZE < size) {
+            throw new IllegalArgumentException("No room for " + blocks.length / 2 + " SACK blocks");
+        }
+        buffer.put(HEADER_SIZE, SACK_OPTION);
+        buffer.put(HEADER_SIZE + 1, (byte) size);
+        for (int j = 0; j < blocks.length / 2 * 2; ++j) {
+            buffer.putInt(HEADER_SIZE + 2 + j * 4, blocks[j]);
+        }
         return this;
     }
 
+    /**
+     * @return the size of the SACK option carrying {@code blocks} blocks
+     */
+    public static int sackOptionSize(int blocks) {
+        return blocks == 0 ? 0 : 2 + blocks * SACK_BLOCK_SIZE;
+    }
+
     public int getSEQ() {
         return buffer.getInt(SEQ);
     }
@@ -153,30 +277,98 @@ public class TCPSegment {
         return this;
     }
 
+    /**
+     * @return the array the segment owns, writes to it change the segment;
+     *     a copy of the segment's bytes if it is a view over a part of a buffer
+     */
     public byte[] getBytes() {
-        return bytes;
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == size()) {
+            return buffer.array();
+        }
+        return copyBytes();
+    }
+
+    /**
+     * @return the segment's bytes between the position and the limit of a new buffer
+     *     that shares them with the segment
+     */
+    public ByteBuffer getByteBuffer() {
+        return buffer.duplicate();
+    }
+
+    private byte[] copyBytes() {
+        byte[] copy = new byte[size()];
+        buffer.duplicate().get(copy);
+        return copy;
     }
 
     public int capacity() {
-        return bytes.length - getDataOffset();
+        return size() - getDataOffset();
     }
 
     public int dataSize() {
-        return buffer.getChar(DATA_SIZE);
+        return buffer.getInt(DATA_SIZE);
+    }
+
+    public TCPSegment setDataSize(int dataSize) {
+        buffer.putInt(DATA_SIZE, dataSize);
+        return this;
+    }
+
+    /**
+     * Sequence number that follows the last data byte of this segment.
+     */
+    public int getEndSEQ() {
+        return getSEQ() + dataSize();
     }
 
     public int size() {
-        return bytes.length;
+        return buffer.limit();
+    }
+
+    /**
+     * The number of bytes the header describes: the header with options and the data.
+     * Segments bundled in one datagram take this many bytes each.
+     */
+    public int length() {
+        return getDataOffset() + dataSize();
     }
 
     public String flagsToString() {
         return String.valueOf(isSYN() ? 'S' : '-') + (isACK() ? 'A' : '-') + (isFIN() ? 'F' : '-');
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        TCPSegment that = (TCPSegment) o;
+
+        return buffer.equals(that.buffer);
+    }
+
+    @Override
+    public int hashCode() {
+        return buffer.hashCode();
+    }
+
     @Override
     public String toString() {
         return String.format("%16s[%s seq: %5d ack: %5d data offset: %3d capacity: %3d]",
-                TCPSegment.class.getSimpleName(), flagsToString(), getSEQ(), getACK(), HEADER_SIZE, capacity());
+                TCPSegment.class.getSimpleName(), flagsToString(), getSEQ(), getACK(), getDataOffset(), capacity());
+    }
+
+    /**
+     * Compares sequence numbers modulo 2<sup>32</sup>, so the comparison stays
+     * correct when the sequence space wraps around.
+     */
+    public static boolean seqBefore(int seq1, int seq2) {
+        return seq1 - seq2 < 0;
+    }
+
+    public static boolean seqBeforeOrEqual(int seq1, int seq2) {
+        return seq1 - seq2 <= 0;
     }
 
     private static byte setFlagActive (byte b, byte flag) {
@@ -193,13 +385,13 @@ public class TCPSegment {
 
     private void setFlag (byte flag, boolean active) {
         if (active) {
-            bytes[FLAGS] = setFlagActive(bytes[FLAGS], flag);
+            buffer.put(FLAGS, setFlagActive(buffer.get(FLAGS), flag));
         } else {
-            bytes[FLAGS] = setFlagInactive(bytes[FLAGS], flag);
+            buffer.put(FLAGS, setFlagInactive(buffer.get(FLAGS), flag));
         }
     }
 
     private boolean getFlag (byte flag) {
-        return getFlag(bytes[FLAGS], flag);
+        return getFlag(buffer.get(FLAGS), flag);
     }
 }
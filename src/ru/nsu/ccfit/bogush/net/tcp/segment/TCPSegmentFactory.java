@@ -29,6 +29,10 @@ public final class TCPSegmentFactory {
         return create(ACK, 0, seq);
     }
 
+    public static int randomSEQ() {
+        return RANDOM.nextInt();
+    }
+
     public static TCPSegment create(TCPSegmentType type, int seq, int ack) {
         return create(type, seq, ack, 0);
     }
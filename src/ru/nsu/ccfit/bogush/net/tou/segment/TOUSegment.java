@@ -1,49 +1,211 @@
 package ru.nsu.ccfit.bogush.net.tou.segment;
 
 import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
+import ru.nsu.ccfit.bogush.util.concurrent.BufferPool;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class TOUSegment extends TCPSegment {
-    private final InetSocketAddress src;
+    private static final AtomicIntegerFieldUpdater<TOUSegment> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(TOUSegment.class, "references");
+    private static final long MAX_TIMEOUT = Long.MAX_VALUE / 2; // nanoseconds, deadlines compare without overflow
+
+    private final InetAddress srcAddress;
+    private final int srcPort;
+    private InetSocketAddress src; // made of srcAddress and srcPort when it is asked for first
     private final InetSocketAddress dst;
-    private long timeout = -1;
+    private long deadline; // in System.nanoTime() terms
+    private boolean deadlineSet = false;
+    private volatile long sendTime;
+    private volatile boolean sent = false;
+    private volatile boolean retransmitted = false;
+    private volatile boolean sacked = false;
+    private BufferPool pool;
+    private ByteBuffer pooledBuffer;
+    private TOUSegment bundle; // the received datagram the segment is a part of
+    private volatile int references = 0;
 
+    /**
+     * Creates a copy of the {@code segment} that owns its bytes.
+     */
     public TOUSegment(TOUSegment segment) {
-        super(segment.getBytes().clone());
-        src = segment.getSrc();
+        super(segment);
+        srcAddress = segment.srcAddress;
+        srcPort = segment.srcPort;
+        src = segment.src;
         dst = segment.getDst();
     }
 
+    /**
+     * Creates a segment that shares the bytes of the {@code segment}.
+     */
     public TOUSegment(TCPSegment segment, InetSocketAddress src, InetSocketAddress dst) {
-        super(segment.getBytes());
+        super(segment.getByteBuffer());
+        this.srcAddress = src == null ? null : src.getAddress();
+        this.srcPort = src == null ? -1 : src.getPort();
         this.src = src;
         this.dst = dst;
     }
 
+    /**
+     * Creates a segment that shares the bytes of the {@code segment} and is received from
+     * {@code srcPort} at {@code srcAddress}. The socket address of the sender isn't allocated
+     * until {@link #getSrc()} is called, a received segment is dispatched without it.
+     */
+    public TOUSegment(TCPSegment segment, InetAddress srcAddress, int srcPort, InetSocketAddress dst) {
+        super(segment.getByteBuffer());
+        this.srcAddress = srcAddress;
+        this.srcPort = srcPort;
+        this.dst = dst;
+    }
+
+    /**
+     * Makes the segment, a view over the {@code buffer} taken from the {@code pool}, its owner.
+     * The buffer goes back to the pool when the segment has been released once more than retained.
+     */
+    public TOUSegment setPooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.pooledBuffer = buffer;
+        references = 1;
+        return this;
+    }
+
+    /**
+     * Makes the segment, a view over a part of the {@code datagram}, share the datagram's pooled buffer:
+     * retaining and releasing the segment retains and releases the datagram, which is retained
+     * once for the segment here.
+     */
+    public TOUSegment setBundle(TOUSegment datagram) {
+        bundle = datagram.retain();
+        return this;
+    }
+
+    /**
+     * Keeps the pooled buffer from returning to the pool until a matching {@link #release()}.
+     * Does nothing if the segment doesn't hold a pooled buffer.
+     */
+    public TOUSegment retain() {
+        if (bundle != null) {
+            bundle.retain();
+        } else if (pool != null) {
+            REFERENCES.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    /**
+     * Gives up a reference to the pooled buffer, the segment must not be used after
+     * the last one. Does nothing if the segment doesn't hold a pooled buffer.
+     */
+    public void release() {
+        if (bundle != null) {
+            bundle.release();
+        } else if (pool != null && REFERENCES.decrementAndGet(this) == 0) {
+            pool.release(pooledBuffer);
+        }
+    }
+
     public InetSocketAddress getSrc() {
+        if (src == null && srcAddress != null) {
+            src = new InetSocketAddress(srcAddress, srcPort);
+        }
         return src;
     }
 
+    public InetAddress getSrcAddress() {
+        return srcAddress;
+    }
+
+    public int getSrcPort() {
+        return srcPort;
+    }
+
     public InetSocketAddress getDst() {
         return dst;
     }
 
+    /**
+     * Sets the deadline {@code timeout} milliseconds from now. The deadline is measured
+     * with the monotonic {@link System#nanoTime()}, so changes of the wall clock don't affect it.
+     */
     public TOUSegment setTimeout(long timeout) {
-        this.timeout = System.currentTimeMillis() + timeout;
+        deadline = System.nanoTime() + Math.min(TimeUnit.MILLISECONDS.toNanos(timeout), MAX_TIMEOUT);
+        deadlineSet = true;
         return this;
     }
 
+    /**
+     * @return whether the deadline has passed, {@code true} if it has never been set
+     */
     public boolean timedOut() {
-        long t = System.currentTimeMillis();
-        return t >= timeout;
+        return !deadlineSet || System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Remembers the time of the latest transmission (in {@link System#nanoTime()} terms).
+     * Every transmission after the first marks the segment as retransmitted.
+     */
+    public void markSent() {
+        retransmitted = sent;
+        sent = true;
+        sendTime = System.nanoTime();
+    }
+
+    public boolean isSent() {
+        return sent;
+    }
+
+    /**
+     * A retransmitted segment can't give a round-trip time sample because it is
+     * unknown which of its transmissions is acknowledged (Karn's algorithm).
+     */
+    public boolean isRetransmitted() {
+        return retransmitted;
+    }
+
+    public long getSendTime() {
+        return sendTime;
+    }
+
+    /**
+     * Marks the segment as selectively acknowledged: the peer has received it
+     * but not all of the data before it, so it needn't be retransmitted.
+     */
+    public void markSACKed() {
+        sacked = true;
+    }
+
+    public boolean isSACKed() {
+        return sacked;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+
+        TOUSegment that = (TOUSegment) o;
+
+        if (srcPort != that.srcPort) return false;
+        return srcAddress != null ? srcAddress.equals(that.srcAddress) : that.srcAddress == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + (srcAddress != null ? srcAddress.hashCode() : 0);
+        result = 31 * result + srcPort;
+        return result;
     }
 
     @Override
     public String toString() {
         return String.format("%16s[%s seq: %5d ack: %5d data offset: %3d capacity: %3d src: %16s:%-5d dst: %16s:%-5d]",
-                TOUSegment.class.getSimpleName(), flagsToString(), getSEQ(), getACK(), HEADER_SIZE, capacity(),
-                src == null ? null : src.getAddress().getHostAddress(), src == null ? -1 : src.getPort(),
+                TOUSegment.class.getSimpleName(), flagsToString(), getSEQ(), getACK(), getDataOffset(), capacity(),
+                srcAddress == null ? null : srcAddress.getHostAddress(), srcPort,
                 dst == null ? null : dst.getAddress().getHostAddress(), dst == null ? -1 : dst.getPort());
     }
 }
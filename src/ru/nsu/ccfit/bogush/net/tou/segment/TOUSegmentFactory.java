@@ -7,7 +7,52 @@ import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType;
 import java.net.InetSocketAddress;
 
 public final class TOUSegmentFactory {
-    private TOUSegmentFactory() {}
+    private final InetSocketAddress src;
+    private final InetSocketAddress dst;
+
+    /**
+     * Creates a factory bound to one connection: every segment it creates is addressed
+     * from {@code src} to {@code dst} unless it is a reply to a received segment.
+     */
+    public TOUSegmentFactory(InetSocketAddress src, InetSocketAddress dst) {
+        this.src = src;
+        this.dst = dst;
+    }
+
+    /**
+     * Creates a segment that opens a handshake ({@link TCPSegmentType#SYN} or {@link TCPSegmentType#FIN})
+     * with a random sequence number.
+     */
+    public TOUSegment create(TCPSegmentType type) {
+        return create(TCPSegmentFactory.create(type, TCPSegmentFactory.randomSEQ(), 0), src, dst);
+    }
+
+    /**
+     * Creates a reply to the {@code received} segment acknowledging its sequence number.
+     * Replies of type {@link TCPSegmentType#ACK} continue the sequence the {@code received}
+     * segment acknowledges, others start a new one.
+     */
+    public TOUSegment create(TCPSegmentType type, TOUSegment received) {
+        int seq = type == TCPSegmentType.ACK ? received.getACK() : TCPSegmentFactory.randomSEQ();
+        return create(TCPSegmentFactory.create(type, seq, received.getSEQ() + 1), received.getDst(), received.getSrc());
+    }
+
+    /**
+     * Creates a segment of the given {@code type} that cumulatively acknowledges all bytes before {@code ack}.
+     */
+    public TOUSegment create(TCPSegmentType type, int seq, int ack) {
+        return create(TCPSegmentFactory.create(type, seq, ack), src, dst);
+    }
+
+    /**
+     * Creates an acknowledgement that also reports the blocks of data received out of order.
+     * @param sackBlocks pairs of left and right edges, see {@link TCPSegment#getSACKBlocks()}
+     */
+    public TOUSegment create(TCPSegmentType type, int seq, int ack, int[] sackBlocks) {
+        TCPSegment segment = new TCPSegment(0, TCPSegment.sackOptionSize(sackBlocks.length / 2))
+                .setFlags(type.toByte()).setSEQ(seq).setACK(ack).setSACKBlocks(sackBlocks);
+        return create(segment, src, dst);
+    }
 
     public static TOUSegment create(TCPSegment segment, InetSocketAddress address) {
         return create(segment, null, address);
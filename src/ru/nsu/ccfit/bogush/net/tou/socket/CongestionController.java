@@ -0,0 +1,62 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.net.SocketException;
+
+/**
+ * <p>
+ *     Congestion control algorithm of one connection. It limits the number of bytes in flight
+ *     by a congestion window that grows while data is acknowledged and shrinks when the network
+ *     drops segments. The sender is allowed to have {@code min(send window, congestion window)}
+ *     bytes in flight.
+ * </p>
+ *
+ * <p>
+ *     The sender reports the events it observes: acknowledged data, round-trip time samples,
+ *     a loss detected by duplicate acknowledgements that starts a recovery and the end of that
+ *     recovery, a retransmission timeout. Sizes are in bytes, times are in nanoseconds.
+ * </p>
+ *
+ * Implementations are selected by name with {@link TOUSocketOptions#TOU_CONGESTION_CONTROL}.
+ */
+interface CongestionController {
+    int MAX_SEGMENT_SIZE = TOUOutputStream.MAX_SEGMENT_SIZE;
+
+    /**
+     * @param bytes the number of bytes the latest acknowledgement has newly acknowledged
+     */
+    void onAcknowledged(int bytes);
+
+    void onRTTSample(long rtt);
+
+    /**
+     * Called when a segment is lost but the following ones reach the peer, so the
+     * connection keeps working at a lower rate while the loss is being repaired.
+     */
+    void onLoss(int bytesInFlight);
+
+    void onRecoveryEnd();
+
+    /**
+     * Called when nothing has been acknowledged for a retransmission timeout, which
+     * means the connection has lost its ACK clock and has to start over. Only the first
+     * of the timeouts that follow one another without progress is reported.
+     */
+    void onRetransmissionTimeout(int bytesInFlight);
+
+    int getWindow();
+
+    int getSlowStartThreshold();
+
+    String getName();
+
+    static CongestionController forName(String name)
+            throws SocketException {
+        switch (name) {
+            case NewRenoCongestionController.NAME:
+                return new NewRenoCongestionController();
+            case CubicCongestionController.NAME:
+                return new CubicCongestionController();
+        }
+        throw new SocketException("Unknown congestion control algorithm: " + name);
+    }
+}
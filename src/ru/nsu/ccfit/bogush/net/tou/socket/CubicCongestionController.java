@@ -0,0 +1,80 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+/**
+ * <p>
+ *     CUBIC congestion control (RFC 9438). Slow start and loss recovery are the same as in NewReno,
+ *     but in congestion avoidance the window follows a cubic function of the time since the last
+ *     loss: {@code W(t) = C * (t - K)^3 + W_max}. It grows fast while far from {@code W_max},
+ *     the window the loss happened at, levels off near it and then probes for more bandwidth.
+ *     Growth doesn't depend on the round-trip time, so long fat paths are filled quickly.
+ * </p>
+ *
+ * <p>
+ *     The window is never smaller than the one a Reno flow would have in the same conditions,
+ *     and a loss reduces it by {@code 1 - BETA} instead of a half.
+ * </p>
+ *
+ * Windows in the formulas are measured in segments and time in seconds.
+ */
+class CubicCongestionController extends NewRenoCongestionController {
+    static final String NAME = "cubic";
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA); // Reno-friendly additive increase
+
+    private double wMax = 0; // window before the latest loss
+    private double k; // time it takes the window to reach wMax again
+    private double wEst; // window a Reno flow would have
+    private long epochStart = -1; // start of the current congestion avoidance period, nanoseconds
+    private long srtt = -1; // nanoseconds
+    private double increment = 0; // fraction of a byte the window is to grow by
+
+    @Override
+    public synchronized void onRTTSample(long rtt) {
+        srtt = srtt < 0 ? rtt : (7 * srtt + rtt) / 8;
+    }
+
+    @Override
+    protected void congestionAvoidance(int bytes) {
+        long now = System.nanoTime();
+        double w = (double) cwnd / MAX_SEGMENT_SIZE;
+        if (epochStart < 0) {
+            epochStart = now;
+            if (w < wMax) {
+                k = Math.cbrt((wMax - w) / C);
+            } else {
+                k = 0;
+                wMax = w;
+            }
+            wEst = w;
+        }
+
+        double t = (now - epochStart + Math.max(srtt, 0)) / 1e9;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        target = Math.min(Math.max(target, w), 1.5 * w);
+        wEst += ALPHA * bytes / cwnd;
+
+        double goal = Math.max(target, wEst);
+        if (goal > w) {
+            increment += (goal - w) / w * bytes;
+            int grow = (int) increment;
+            cwnd += grow;
+            increment -= grow;
+        }
+    }
+
+    @Override
+    protected int reducedWindow(int bytesInFlight) {
+        double w = (double) cwnd / MAX_SEGMENT_SIZE;
+        // fast convergence: release bandwidth for new flows if the window keeps shrinking
+        wMax = w < wMax ? w * (1 + BETA) / 2 : w;
+        epochStart = -1;
+        increment = 0;
+        return Math.max((int) (cwnd * BETA), MIN_WINDOW);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
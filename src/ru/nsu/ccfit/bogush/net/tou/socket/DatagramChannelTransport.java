@@ -0,0 +1,168 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+import ru.nsu.ccfit.bogush.util.concurrent.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * <p>
+ *     Transport over a blocking {@link DatagramChannel}. Datagrams are received into pooled
+ *     direct buffers, and the received segment is a view over one, so the data is copied
+ *     only once: from the buffer into the receive buffer of the connection.
+ * </p>
+ *
+ * <p>
+ *     A segment that is a view over a direct buffer is sent as is. Other segments are
+ *     copied into a direct buffer by the channel itself.
+ * </p>
+ *
+ * <p>
+ *     The channel blocks unless it is {@link #register registered} with the selector of an
+ *     {@link EventLoop}. Then a datagram that doesn't fit in the socket's send buffer is dropped
+ *     like one lost in the network.
+ * </p>
+ */
+class DatagramChannelTransport implements Transport {
+    static final String NAME = "channel";
+
+    private final DatagramChannel channel;
+    private final BufferPool pool = new BufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_POOL_CAPACITY, true);
+    private volatile InetSocketAddress remote;
+
+    DatagramChannelTransport(InetSocketAddress address, boolean reusePort)
+            throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new SocketException("SO_REUSEPORT is not supported");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TOUSegment receive(InetSocketAddress local)
+            throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        InetSocketAddress src;
+        try {
+            do {
+                src = receiveInto(buffer);
+            } while (src == null || buffer.remaining() < TCPSegment.HEADER_SIZE);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        return new TOUSegment(new TCPSegment(buffer), src, local).setPooledBuffer(pool, buffer);
+    }
+
+    /**
+     * Receives a datagram if one is ready. The channel must have been {@link #register registered}.
+     * @return the segment or {@code null} if there is no datagram to receive
+     */
+    TOUSegment receiveNow(InetSocketAddress local)
+            throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        InetSocketAddress src;
+        try {
+            do {
+                src = receiveInto(buffer);
+                if (src == null) {
+                    pool.release(buffer);
+                    return null;
+                }
+            } while (buffer.remaining() < TCPSegment.HEADER_SIZE);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        return new TOUSegment(new TCPSegment(buffer), src, local).setPooledBuffer(pool, buffer);
+    }
+
+    /**
+     * @return the sender of the datagram received between the position and the limit of the {@code buffer}
+     *     or {@code null} if nothing has been received
+     */
+    private InetSocketAddress receiveInto(ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        InetSocketAddress src;
+        if (remote != null) {
+            // a connected channel receives from one address only, it needn't be allocated per datagram
+            src = channel.read(buffer) > 0 ? remote : null;
+        } else {
+            src = (InetSocketAddress) channel.receive(buffer);
+        }
+        buffer.flip();
+        return src;
+    }
+
+    /**
+     * Switches the channel to non-blocking mode and registers it for reading with the {@code selector}.
+     */
+    SelectionKey register(Selector selector, Object attachment)
+            throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, attachment);
+    }
+
+    @Override
+    public void send(TOUSegment segment)
+            throws IOException {
+        if (remote != null) {
+            channel.write(segment.getByteBuffer());
+        } else {
+            channel.send(segment.getByteBuffer(), segment.getDst());
+        }
+    }
+
+    @Override
+    public void connect(InetSocketAddress remote)
+            throws IOException {
+        channel.connect(remote);
+        this.remote = remote;
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
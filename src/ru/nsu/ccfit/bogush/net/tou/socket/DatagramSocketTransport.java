@@ -0,0 +1,101 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+import ru.nsu.ccfit.bogush.util.concurrent.BufferPool;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a blocking {@link DatagramSocket}. The packet receives straight into
+ * the array of a pooled heap buffer, and the received segment refers to the packet's
+ * sender without wrapping it in a socket address.
+ */
+class DatagramSocketTransport implements Transport {
+    static final String NAME = "socket";
+
+    private final DatagramSocket datagramSocket;
+    private final BufferPool pool = new BufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_POOL_CAPACITY, false);
+    private final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+    private volatile InetSocketAddress remote;
+
+    DatagramSocketTransport(InetSocketAddress address, boolean reusePort)
+            throws IOException {
+        datagramSocket = new DatagramSocket(null);
+        try {
+            if (reusePort) {
+                if (!datagramSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new SocketException("SO_REUSEPORT is not supported");
+                }
+                datagramSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            datagramSocket.bind(address);
+        } catch (IOException e) {
+            datagramSocket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TOUSegment receive(InetSocketAddress local)
+            throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        packet.setData(buffer.array(), 0, buffer.capacity());
+        try {
+            do {
+                packet.setLength(buffer.capacity());
+                datagramSocket.receive(packet);
+            } while (packet.getLength() < TCPSegment.HEADER_SIZE);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        buffer.limit(packet.getLength());
+        TCPSegment segment = new TCPSegment(buffer);
+        InetSocketAddress connected = remote;
+        if (connected != null) {
+            // a connected socket receives from one address only
+            return new TOUSegment(segment, connected, local).setPooledBuffer(pool, buffer);
+        }
+        return new TOUSegment(segment, packet.getAddress(), packet.getPort(), local).setPooledBuffer(pool, buffer);
+    }
+
+    @Override
+    public void send(TOUSegment segment)
+            throws IOException {
+        datagramSocket.send(new DatagramPacket(segment.getBytes(), segment.size(), segment.getDst()));
+    }
+
+    @Override
+    public void connect(InetSocketAddress remote)
+            throws IOException {
+        datagramSocket.connect(remote);
+        this.remote = remote;
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        return (InetSocketAddress) datagramSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return datagramSocket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        datagramSocket.close();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,136 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.util.concurrent.HashedTimingWheel;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static ru.nsu.ccfit.bogush.net.tou.socket.TOUSharedCommunicator.TIMING_WHEEL_SIZE;
+import static ru.nsu.ccfit.bogush.net.tou.socket.TOUSharedCommunicator.TIMING_WHEEL_TICK;
+
+/**
+ * <p>
+ *     One thread that does the work of many communicators: it receives the datagrams
+ *     of their channels registered with its selector, runs the tasks they submit (sending
+ *     and flushing) and drives the timing wheel that holds all their timers. Thus the number
+ *     of internal threads doesn't grow with the number of connections.
+ * </p>
+ *
+ * <p>
+ *     Between events the loop waits in select until the earliest timer is due, or for good
+ *     if no timer is armed, so idle loops don't wake up every tick.
+ * </p>
+ *
+ * <p>
+ *     Nothing that runs on the loop may block, or every connection of the loop stalls.
+ *     The loops are created by {@link EventLoopGroup}.
+ * </p>
+ */
+class EventLoop implements Executor, Runnable {
+    /**
+     * Receives the datagrams of a channel registered with the loop.
+     */
+    interface Receiver {
+        /**
+         * @param max the number of datagrams to receive at most, the rest wait for the next call
+         */
+        void receiveReady(int max);
+    }
+
+    private static final int MAX_DATAGRAMS_PER_READ = 64; // so that one busy channel can't starve the others
+
+    final HashedTimingWheel timingWheel =
+            new HashedTimingWheel(TIMING_WHEEL_TICK, TimeUnit.MILLISECONDS, TIMING_WHEEL_SIZE, this::wakeup);
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    EventLoop(String name)
+            throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the {@code task} on the loop's thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Makes the loop's thread stop waiting in select, it is done when a task is submitted
+     * or a timer is armed to expire before the time the loop waits until.
+     */
+    private void wakeup() {
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Starts receiving the datagrams of the {@code transport}'s channel on this loop.
+     * The channel's key is cancelled when the channel is closed.
+     */
+    void register(DatagramChannelTransport transport, Receiver receiver) {
+        execute(() -> {
+            try {
+                transport.register(selector, receiver);
+            } catch (ClosedChannelException ignored) {
+                // the communicator has stopped before it could start
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeout = timingWheel.nanosUntilNextDeadline();
+                if (!tasks.isEmpty() || timeout == 0) {
+                    selector.selectNow();
+                } else if (timeout < 0) {
+                    // no timer is armed, arming one wakes the loop up
+                    selector.select();
+                } else {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(timeout + 999_999)); // rounded up
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    ((Receiver) key.attachment()).receiveReady(MAX_DATAGRAMS_PER_READ);
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            timingWheel.advance();
+        }
+    }
+}
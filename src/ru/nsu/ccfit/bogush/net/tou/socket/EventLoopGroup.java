@@ -0,0 +1,38 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link EventLoop}s, one per available processor, shared by every communicator
+ * that runs on event loops. Communicators are assigned to the loops in turn.
+ */
+final class EventLoopGroup {
+    private static EventLoopGroup shared;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private EventLoopGroup(int size)
+            throws IOException {
+        loops = new EventLoop[size];
+        for (int i = 0; i < size; ++i) {
+            loops[i] = new EventLoop("TOUEventLoop-" + i);
+        }
+    }
+
+    /**
+     * @return the group, created on first use; its threads are daemons and live as long as the process
+     */
+    static synchronized EventLoopGroup shared()
+            throws IOException {
+        if (shared == null) {
+            shared = new EventLoopGroup(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+}
@@ -0,0 +1,95 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+/**
+ * <p>
+ *     TCP NewReno congestion control (RFC 5681, RFC 6582). The window starts at
+ *     {@link #INITIAL_WINDOW} (RFC 6928) and grows exponentially in slow start until it reaches
+ *     the slow start threshold, then by one segment per window of acknowledged data
+ *     (congestion avoidance, with appropriate byte counting of RFC 3465).
+ * </p>
+ *
+ * <p>
+ *     A loss halves the window, and it doesn't grow until the recovery ends.
+ *     A retransmission timeout halves the threshold and restarts slow start from one segment.
+ * </p>
+ */
+class NewRenoCongestionController implements CongestionController {
+    static final String NAME = "newreno";
+    static final int INITIAL_WINDOW = 10 * MAX_SEGMENT_SIZE;
+    static final int MIN_WINDOW = 2 * MAX_SEGMENT_SIZE; // after a loss
+    private static final int MAX_WINDOW = 1<<30;
+
+    protected int cwnd = INITIAL_WINDOW;
+    protected int ssthresh = MAX_WINDOW;
+    private int bytesAcked = 0; // acknowledged in congestion avoidance since the window was enlarged
+    private boolean recovering = false;
+
+    @Override
+    public synchronized void onAcknowledged(int bytes) {
+        if (recovering) return;
+        if (cwnd < ssthresh) {
+            cwnd += Math.min(bytes, 2 * MAX_SEGMENT_SIZE);
+        } else {
+            congestionAvoidance(bytes);
+        }
+        cwnd = Math.min(cwnd, MAX_WINDOW);
+    }
+
+    @Override
+    public synchronized void onRTTSample(long rtt) {
+    }
+
+    @Override
+    public synchronized void onLoss(int bytesInFlight) {
+        ssthresh = reducedWindow(bytesInFlight);
+        cwnd = ssthresh;
+        recovering = true;
+    }
+
+    @Override
+    public synchronized void onRecoveryEnd() {
+        recovering = false;
+    }
+
+    @Override
+    public synchronized void onRetransmissionTimeout(int bytesInFlight) {
+        ssthresh = reducedWindow(bytesInFlight);
+        cwnd = MAX_SEGMENT_SIZE;
+        recovering = false;
+    }
+
+    /**
+     * Increases the window in congestion avoidance. Called holding the lock of this controller.
+     */
+    protected void congestionAvoidance(int bytes) {
+        bytesAcked += bytes;
+        if (bytesAcked >= cwnd) {
+            bytesAcked -= cwnd;
+            cwnd += MAX_SEGMENT_SIZE;
+        }
+    }
+
+    /**
+     * Called holding the lock of this controller when the network has dropped a segment.
+     * @return the new slow start threshold
+     */
+    protected int reducedWindow(int bytesInFlight) {
+        bytesAcked = 0;
+        return Math.max(bytesInFlight / 2, MIN_WINDOW);
+    }
+
+    @Override
+    public synchronized int getWindow() {
+        return cwnd;
+    }
+
+    @Override
+    public synchronized int getSlowStartThreshold() {
+        return ssthresh;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,350 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentFactory;
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegmentFactory;
+import ru.nsu.ccfit.bogush.util.concurrent.HashedTimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBeforeOrEqual;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType.SYNACK;
+import static ru.nsu.ccfit.bogush.net.tou.segment.TOUSegmentFactory.create;
+
+/**
+ * <p>
+ *     Connections of a listening impl that haven't been accepted yet. The communicator runs
+ *     every handshake on its own: a SYN is answered with a SYN-ACK as soon as it arrives,
+ *     and the ACK completing the handshake moves the connection to the queue of established
+ *     connections. So any number of handshakes progress at once, and an accept only takes
+ *     an established connection from the queue, like in TCP.
+ * </p>
+ *
+ * <p>
+ *     A connection here is only a record of the handshake: the impl that serves it is made
+ *     by the accept, {@link java.net.ServerSocket} hands it a new one. Data and FIN segments
+ *     the peer sends meanwhile are kept and passed to that impl.
+ * </p>
+ *
+ * <p>
+ *     At most {@code backlog} connections are waiting, half-open or established,
+ *     SYNs beyond that are dropped and will be resent.
+ * </p>
+ *
+ * <p>
+ *     With {@link TOUSocketOptions#TOU_SYN_COOKIES} there are no half-open connections:
+ *     a SYN is answered with a {@link TOUSynCookies SYN cookie} and nothing else,
+ *     and the connection is made by the ACK that returns a valid cookie. A flood of SYNs then
+ *     costs no memory and can't crowd out real clients. The SYN-ACK isn't resent, the client
+ *     resends its SYN instead, and a client whose final ACK is lost is only noticed
+ *     when it sends data.
+ * </p>
+ */
+class TOUAcceptQueue {
+    private final TOUSharedCommunicator communicator;
+    private final TOUSegmentFactory segmentFactory;
+    private final int backlog;
+    private final long handshakeTimeout;
+    private final TOUSynCookies synCookies; // null unless SYN cookies are on
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final BlockingQueue<Connection> established = new LinkedBlockingQueue<>();
+    private final Queue<CompletableFuture<TOUSocketImpl>> pendingAccepts = new ConcurrentLinkedQueue<>();
+    private final Adopter adopter;
+    private final Connection closedMarker = new Connection(); // wakes up a blocked accept
+    private volatile boolean closed = false;
+
+    interface Adopter {
+        /**
+         * Configures the accepted {@code impl} for the {@code connection} and {@link Connection#handOver hands it over}.
+         */
+        void adopt(TOUSocketImpl impl, Connection connection)
+                throws IOException;
+    }
+
+    /**
+     * A connection whose SYN has been answered.
+     */
+    class Connection {
+        final InetSocketAddress remote;
+        final int initialReadSEQ;
+        final int initialWriteSEQ;
+        final int peerWindow;
+        final TOURetransmissionTimeout rto = new TOURetransmissionTimeout();
+        private final int window; // advertised in the SYN-ACK
+        private final TOUSegment synack; // resent until the handshake completes, null with a SYN cookie
+        private final HashedTimingWheel.Timeout retransmissionTimer = new HashedTimingWheel.Timeout(this::retransmit);
+        private boolean isEstablished = false; // guarded by this
+        private final List<TOUSegment> early = new ArrayList<>(); // guarded by this
+        private int earlyBytes = 0; // at most the window advertised in the SYN-ACK, guarded by this
+        private TOUSocketImpl impl; // guarded by this
+
+        private Connection(TOUSegment syn, TOUSegment synack) {
+            this(syn.getSrc(), syn.getSEQ() + 1, synack.getSEQ() + 1, syn.getWindow(), synack.getWindow(), synack);
+        }
+
+        private Connection(InetSocketAddress remote, int initialReadSEQ, int initialWriteSEQ,
+                           int peerWindow, int window, TOUSegment synack) {
+            this.remote = remote;
+            this.initialReadSEQ = initialReadSEQ;
+            this.initialWriteSEQ = initialWriteSEQ;
+            this.peerWindow = peerWindow;
+            this.window = window;
+            this.synack = synack;
+        }
+
+        private Connection() {
+            this(null, 0, 0, 0, 0, null);
+        }
+
+        /**
+         * Passes the connection to the accepted {@code impl}: replays the segments kept for it
+         * and registers the impl with the communicator, which delivers it the next ones.
+         */
+        synchronized void handOver(TOUSocketImpl impl)
+                throws IOException, InterruptedException {
+            this.impl = impl;
+            try {
+                for (TOUSegment segment : early) {
+                    impl.handle(segment);
+                }
+            } finally {
+                early.forEach(TOUSegment::release);
+                early.clear();
+            }
+            communicator.registerImpl(remote, impl);
+            connections.remove(remote, this);
+        }
+
+        /**
+         * @return whether the segment has completed the handshake
+         */
+        private synchronized boolean handle(TOUSegment segment)
+                throws IOException, InterruptedException {
+            if (impl != null) {
+                // received while the connection was being handed over
+                impl.handle(segment);
+                return false;
+            }
+            boolean completed = false;
+            if (!isEstablished) {
+                // the client may have sent data already, then the first ACK we get has a greater SEQ
+                if (!segment.isACK() || segment.isSYN() || segment.getACK() != initialWriteSEQ
+                        || !seqBeforeOrEqual(initialReadSEQ, segment.getSEQ())) return false;
+                isEstablished = true;
+                completed = true;
+                communicator.timingWheel.cancel(retransmissionTimer);
+                if (synack != null && synack.isSent() && !synack.isRetransmitted()) {
+                    rto.sample(synack.getSendTime());
+                }
+                established.add(this);
+            }
+            if (segment.isFIN() || segment.dataSize() > 0 && earlyBytes + segment.dataSize() <= window) {
+                earlyBytes += segment.dataSize();
+                early.add(segment.retain());
+            }
+            return completed;
+        }
+
+        private void send()
+                throws IOException {
+            synack.markSent();
+            if (synack.isRetransmitted()) {
+                rto.retransmitted();
+            }
+            communicator.send(synack);
+            communicator.timingWheel.arm(retransmissionTimer, rto.get(), NANOSECONDS);
+        }
+
+        private void retransmit() {
+            synchronized (this) {
+                if (isEstablished) return;
+            }
+            if (closed || synack.timedOut()) {
+                // the client is gone
+                connections.remove(remote, this);
+                return;
+            }
+            rto.backoff();
+            try {
+                send();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private synchronized void discard() {
+            communicator.timingWheel.cancel(retransmissionTimer);
+            early.forEach(TOUSegment::release);
+            early.clear();
+        }
+    }
+
+    /**
+     * @param handshakeTimeout milliseconds after which resending a SYN-ACK gives up
+     * @param synCookies whether to answer SYNs with SYN cookies
+     */
+    TOUAcceptQueue(TOUSharedCommunicator communicator, TOUSegmentFactory segmentFactory,
+                   int backlog, long handshakeTimeout, boolean synCookies, Adopter adopter) {
+        this.communicator = communicator;
+        this.segmentFactory = segmentFactory;
+        this.backlog = Math.max(backlog, 1);
+        this.handshakeTimeout = handshakeTimeout;
+        this.synCookies = synCookies ? new TOUSynCookies() : null;
+        this.adopter = adopter;
+    }
+
+    /**
+     * Takes a segment addressed to the listening impl, on the communicator's thread. Doesn't block.
+     * @param window the receive window to advertise in a SYN-ACK
+     */
+    void handle(TOUSegment segment, int window)
+            throws IOException, InterruptedException {
+        if (closed) return;
+        Connection connection = connections.get(segment.getSrc());
+        if (connection != null) {
+            // a resent SYN is dropped, the SYN-ACK is resent on its own
+            if (!segment.isSYN() && connection.handle(segment)) {
+                matchPendingAccepts();
+            }
+            return;
+        }
+        if (segment.isSYN() && !segment.isACK()) {
+            if (synCookies != null) {
+                answerWithCookie(segment, window);
+            } else {
+                synReceived(segment, window);
+            }
+        } else if (synCookies != null && segment.isACK() && !segment.isSYN()) {
+            cookieReturned(segment, window);
+        }
+    }
+
+    /**
+     * Answers the SYN with a SYN-ACK whose sequence number is a cookie, keeping nothing.
+     */
+    private void answerWithCookie(TOUSegment syn, int window)
+            throws IOException {
+        if (connections.size() >= backlog) return;
+        // three-way handshake: SYN(x,?) -> SYNACK(y,x+1) -> ACK(x+1,y+1), y is the cookie
+        int x = syn.getSEQ();
+        int y = synCookies.create(syn.getSrc(), x, syn.getWindow());
+        TOUSegment synack = create(TCPSegmentFactory.create(SYNACK, y, x + 1), syn.getDst(), syn.getSrc());
+        synack.setWindow(window);
+        communicator.send(synack);
+    }
+
+    /**
+     * Makes the connection if the ACK returns a valid cookie. The first segment the client sends
+     * after the handshake, an ACK or data, has the sequence number that follows the SYN's.
+     */
+    private void cookieReturned(TOUSegment ack, int window)
+            throws IOException, InterruptedException {
+        if (connections.size() >= backlog) return;
+        int x = ack.getSEQ() - 1;
+        int y = ack.getACK() - 1;
+        int peerWindow = synCookies.check(ack.getSrc(), x, y);
+        if (peerWindow < 0) return;
+        Connection connection = new Connection(ack.getSrc(), x + 1, y + 1, peerWindow, window, null);
+        if (connections.putIfAbsent(connection.remote, connection) != null) return;
+        if (connection.handle(ack)) {
+            matchPendingAccepts();
+        }
+    }
+
+    private void synReceived(TOUSegment syn, int window)
+            throws IOException {
+        if (connections.size() >= backlog) return;
+        // three-way handshake: SYN(x,?) -> SYNACK(y,x+1) -> ACK(x+1,y+1)
+        TOUSegment synack = segmentFactory.create(SYNACK, syn);
+        synack.setWindow(window);
+        synack.setTimeout(handshakeTimeout);
+        Connection connection = new Connection(syn, synack);
+        if (connections.putIfAbsent(connection.remote, connection) != null) return;
+        connection.send();
+    }
+
+    /**
+     * Waits for an established connection and hands it over to the {@code impl}.
+     */
+    void accept(TOUSocketImpl impl)
+            throws InterruptedException, IOException {
+        Connection connection = established.take();
+        if (connection == closedMarker) {
+            established.add(closedMarker);
+            throw new SocketException("Socket closed");
+        }
+        adopter.adopt(impl, connection);
+    }
+
+    /**
+     * Starts accepting a connection without blocking.
+     * @return a future completed, on the communicator's thread if no connection is established yet,
+     *     with a new impl serving the connection
+     */
+    CompletableFuture<TOUSocketImpl> acceptAsync() {
+        CompletableFuture<TOUSocketImpl> accepted = new CompletableFuture<>();
+        pendingAccepts.add(accepted);
+        if (closed) {
+            pendingAccepts.remove(accepted);
+            accepted.completeExceptionally(new SocketException("Socket closed"));
+            return accepted;
+        }
+        matchPendingAccepts();
+        return accepted;
+    }
+
+    /**
+     * Hands an established connection to each pending asynchronous accept. Runs whenever either of them appears,
+     * so neither waits for the other. Doesn't block.
+     */
+    void matchPendingAccepts() {
+        if (pendingAccepts.isEmpty()) return;
+        synchronized (pendingAccepts) {
+            CompletableFuture<TOUSocketImpl> accepted;
+            while ((accepted = pendingAccepts.peek()) != null) {
+                if (accepted.isDone()) {
+                    // cancelled
+                    pendingAccepts.poll();
+                    continue;
+                }
+                Connection connection = established.poll();
+                if (connection == null) return;
+                if (connection == closedMarker) {
+                    established.add(closedMarker);
+                    return;
+                }
+                pendingAccepts.poll();
+                TOUSocketImpl impl = new TOUSocketImpl();
+                try {
+                    adopter.adopt(impl, connection);
+                    accepted.complete(impl);
+                } catch (IOException e) {
+                    accepted.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        CompletableFuture<TOUSocketImpl> accepted;
+        while ((accepted = pendingAccepts.poll()) != null) {
+            accepted.completeExceptionally(new SocketException("Socket closed"));
+        }
+        connections.values().forEach(Connection::discard);
+        connections.clear();
+        established.clear();
+        established.add(closedMarker);
+    }
+}
@@ -0,0 +1,75 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ *     A TCP over UDP server socket that doesn't block, the counterpart of {@link TOUAsyncSocket}:
+ *     {@link #accept()} returns a future the communicator completes with a connected
+ *     socket once a handshake finishes. The accepted sockets inherit the options of the server socket.
+ * </p>
+ *
+ * <p>
+ *     Any number of accepts may be pending, they are completed in the order they are made.
+ * </p>
+ *
+ * <p>
+ *     Like {@link TOUAsyncSocket} the server socket runs on the shared event loops by default,
+ *     see {@link TOUSocketOptions#TOU_EVENT_LOOP}.
+ * </p>
+ */
+public class TOUAsyncServerSocket implements Closeable {
+    private final TOUSocketImpl impl = new TOUSocketImpl(true);
+
+    /**
+     * Sets a standard {@link java.net.SocketOptions} or {@link TOUSocketOptions} option.
+     */
+    public TOUAsyncServerSocket setOption(int optID, Object value)
+            throws SocketException {
+        impl.setOption(optID, value);
+        return this;
+    }
+
+    public Object getOption(int optID)
+            throws SocketException {
+        return impl.getOption(optID);
+    }
+
+    /**
+     * @param backlog the maximum number of connections, half-open or established, waiting to be accepted
+     */
+    public TOUAsyncServerSocket bind(SocketAddress local, int backlog)
+            throws IOException {
+        InetSocketAddress address = (InetSocketAddress) local;
+        impl.bind(address.getAddress(), address.getPort());
+        impl.listen(backlog);
+        return this;
+    }
+
+    public CompletableFuture<TOUAsyncSocket> accept() {
+        return impl.acceptAsync().thenApply(accepted -> new TOUAsyncSocket(accepted).established());
+    }
+
+    public <A> void accept(A attachment, CompletionHandler<TOUAsyncSocket, ? super A> handler) {
+        TOUAsyncSocket.handle(accept(), attachment, handler);
+    }
+
+    /**
+     * Closes the server socket, the pending accepts fail. The sockets accepted before stay open.
+     */
+    @Override
+    public void close()
+            throws IOException {
+        impl.close();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return impl.communicator == null ? null : impl.communicator.transport.getLocalSocketAddress();
+    }
+}
@@ -0,0 +1,256 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ *     A TCP over UDP socket that doesn't block: connecting, reading and writing return
+ *     a {@link CompletableFuture} or take a {@link CompletionHandler}, the way
+ *     {@link java.nio.channels.AsynchronousSocketChannel} does. It runs on the same
+ *     {@link TOUSocketImpl} and {@link TOUSharedCommunicator} as a {@link java.net.Socket}
+ *     made by {@link TOUSocketImplFactory}, so both talk to each other.
+ * </p>
+ *
+ * <p>
+ *     No thread waits for an operation: the communicator completes it on its own threads
+ *     when the handshake finishes, data arrives, the send buffer frees space or the close
+ *     handshake ends. An operation that can complete at once completes on the caller's thread.
+ *     Either way callbacks must not block, they hold up every connection of the communicator.
+ * </p>
+ *
+ * <p>
+ *     The socket runs on the event loops shared by the whole process
+ *     ({@link TOUSocketOptions#TOU_EVENT_LOOP} is set by default), so that the number of threads
+ *     doesn't grow with the number of connections. Clearing the option before connecting
+ *     gives the socket a communicator with threads of its own.
+ * </p>
+ *
+ * <p>
+ *     At most one read and one write may be pending at a time.
+ * </p>
+ */
+public class TOUAsyncSocket implements Closeable {
+    private static final class Operation {
+        private final ByteBuffer buffer;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private Operation(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final TOUSocketImpl impl;
+    private volatile TOUOutputStream out;
+    private volatile boolean closed = false;
+    private final AtomicReference<Operation> pendingRead = new AtomicReference<>();
+    private final AtomicReference<Operation> pendingWrite = new AtomicReference<>();
+
+    public TOUAsyncSocket() {
+        this(new TOUSocketImpl(true));
+    }
+
+    TOUAsyncSocket(TOUSocketImpl impl) {
+        this.impl = impl;
+    }
+
+    /**
+     * Sets a standard {@link java.net.SocketOptions} or {@link TOUSocketOptions} option.
+     */
+    public TOUAsyncSocket setOption(int optID, Object value)
+            throws SocketException {
+        impl.setOption(optID, value);
+        return this;
+    }
+
+    public Object getOption(int optID)
+            throws SocketException {
+        return impl.getOption(optID);
+    }
+
+    public CompletableFuture<Void> connect(SocketAddress remote) {
+        CompletableFuture<Void> connected;
+        try {
+            connected = impl.connectAsync((InetSocketAddress) remote);
+        } catch (IOException e) {
+            connected = new CompletableFuture<>();
+            connected.completeExceptionally(e);
+            return connected;
+        }
+        return connected.thenRun(this::established);
+    }
+
+    public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+        handle(connect(remote), attachment, handler);
+    }
+
+    /**
+     * Called once the handshake is complete, before the socket is handed out.
+     */
+    TOUAsyncSocket established() {
+        try {
+            out = (TOUOutputStream) impl.getOutputStream();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        out.setSpaceListener(this::completeWrite);
+        impl.setListener(() -> {
+            completeRead();
+            completeWrite();
+        });
+        return this;
+    }
+
+    /**
+     * Reads as many bytes as have been received, up to the room in {@code dst}, as soon as there are any.
+     * @return a future of the number of bytes read, -1 once the peer has closed the connection
+     *     and all the data is read
+     * @throws ReadPendingException if the previous read hasn't completed yet
+     */
+    public CompletableFuture<Integer> read(ByteBuffer dst) {
+        if (closed) return closedFuture();
+        if (out == null) throw new NotYetConnectedException();
+        Operation read = new Operation(dst);
+        if (!pendingRead.compareAndSet(null, read)) throw new ReadPendingException();
+        completeRead();
+        return read.future;
+    }
+
+    public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        handle(read(dst), attachment, handler);
+    }
+
+    /**
+     * Copies as much of {@code src} into the send buffer as it has room for, as soon as there is any.
+     * @return a future of the number of bytes written
+     * @throws WritePendingException if the previous write hasn't completed yet
+     */
+    public CompletableFuture<Integer> write(ByteBuffer src) {
+        if (closed) return closedFuture();
+        if (out == null) throw new NotYetConnectedException();
+        Operation write = new Operation(src);
+        if (!pendingWrite.compareAndSet(null, write)) throw new WritePendingException();
+        completeWrite();
+        return write.future;
+    }
+
+    public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        handle(write(src), attachment, handler);
+    }
+
+    private static CompletableFuture<Integer> closedFuture() {
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ClosedChannelException());
+        return failed;
+    }
+
+    /*
+     * A pending operation is completed by whichever thread claims it first: the caller or the communicator.
+     * A thread that claims it and finds nothing to do puts it back and checks again, so an event
+     * that another thread saw meanwhile, while the operation was claimed, isn't missed.
+     */
+
+    private void completeRead() {
+        Operation read;
+        while ((read = pendingRead.getAndSet(null)) != null) {
+            int n;
+            try {
+                n = impl.readData(read.buffer);
+            } catch (IOException e) {
+                read.future.completeExceptionally(e);
+                return;
+            }
+            if (n != 0 || !read.buffer.hasRemaining()) {
+                read.future.complete(n);
+                return;
+            }
+            pendingRead.set(read);
+            if (!impl.hasDataToRead()) return;
+        }
+    }
+
+    private void completeWrite() {
+        Operation write;
+        while ((write = pendingWrite.getAndSet(null)) != null) {
+            int n;
+            try {
+                n = out.write(write.buffer);
+            } catch (IOException e) {
+                write.future.completeExceptionally(e);
+                return;
+            }
+            if (n != 0 || !write.buffer.hasRemaining()) {
+                write.future.complete(n);
+                return;
+            }
+            pendingWrite.set(write);
+            if (out.isFull() && !impl.isClosedOrPending() && !impl.isOutShut()) return;
+        }
+    }
+
+    /**
+     * Closes the socket without blocking, the pending operations fail.
+     * The data written before is still delivered, see {@link #closeAsync()}.
+     */
+    @Override
+    public void close() {
+        closeAsync();
+    }
+
+    /**
+     * Closes the socket, the pending operations fail with {@link AsynchronousCloseException}.
+     * The data written before is still delivered.
+     * @return a future completed when the connection is closed
+     */
+    public CompletableFuture<Void> closeAsync() {
+        closed = true;
+        fail(pendingRead);
+        fail(pendingWrite);
+        try {
+            return impl.closeAsync();
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static void fail(AtomicReference<Operation> pending) {
+        Operation operation = pending.getAndSet(null);
+        if (operation != null) {
+            operation.future.completeExceptionally(new AsynchronousCloseException());
+        }
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return impl.communicator == null ? null : impl.communicator.transport.getLocalSocketAddress();
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return impl.getRemoteSocketAddress();
+    }
+
+    static <V, A> void handle(CompletableFuture<V> future, A attachment, CompletionHandler<V, ? super A> handler) {
+        future.whenComplete((result, e) -> {
+            if (e == null) {
+                handler.completed(result, attachment);
+            } else {
+                handler.failed(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e,
+                        attachment);
+            }
+        });
+    }
+}
@@ -0,0 +1,182 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ *     Maps socket addresses to the impls segments from them are addressed to (see {@link TOUSharedCommunicator}).
+ *     Lookups happen for every received segment, on several receiver threads at once,
+ *     so they take no lock and allocate nothing: they take the sender's address and port as they are
+ *     received, without a socket address around them. Registering and unregistering impls
+ *     is rare and synchronized.
+ * </p>
+ *
+ * <p>
+ *     An IPv4 address and a port are packed in a {@code long} key of an open addressing table
+ *     with linear probing, so a lookup costs the same however many connections there are.
+ *     Other addresses fall back to a {@link ConcurrentHashMap} keyed by socket addresses,
+ *     a lookup there allocates one.
+ * </p>
+ *
+ * <p>
+ *     A slot, once it has a key, keeps it until the table is rebuilt: removing an impl
+ *     only clears the slot's entry, and only an address with the same key may reuse the slot.
+ *     So a reader that has found the key never sees an entry of another key there.
+ *     The table is rebuilt without the cleared slots when it gets too full.
+ * </p>
+ */
+class TOUDemuxTable {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long IPV4_KEY = 1L << 48; // tells a packed key from an empty slot, whose key is 0
+
+    private static final class Entry {
+        private final InetSocketAddress address;
+        private final TOUSocketImpl impl;
+
+        private Entry(InetSocketAddress address, TOUSocketImpl impl) {
+            this.address = address;
+            this.impl = impl;
+        }
+    }
+
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<Entry> entries;
+        private final int mask;
+        private int used; // slots that have a key, guarded by the TOUDemuxTable
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            entries = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private final ConcurrentHashMap<InetSocketAddress, TOUSocketImpl> others = new ConcurrentHashMap<>();
+    private int size; // impls in the table, guarded by this
+
+    TOUSocketImpl get(InetAddress address, int port) {
+        long key = pack(address, port);
+        if (key == 0) {
+            return others.get(new InetSocketAddress(address, port));
+        }
+        Table t = table;
+        for (int i = index(key, t); ; i = (i + 1) & t.mask) {
+            long k = t.keys.get(i);
+            if (k == 0) {
+                return null;
+            }
+            if (k == key) {
+                Entry entry = t.entries.get(i);
+                if (entry != null && entry.address.getPort() == port && entry.address.getAddress().equals(address)) {
+                    return entry.impl;
+                }
+            }
+        }
+    }
+
+    synchronized void put(InetSocketAddress address, TOUSocketImpl impl) {
+        long key = pack(address.getAddress(), address.getPort());
+        if (key == 0) {
+            others.put(address, impl);
+            return;
+        }
+        Table t = table;
+        int reusable = -1;
+        int i = index(key, t);
+        for (long k; (k = t.keys.get(i)) != 0; i = (i + 1) & t.mask) {
+            if (k == key) {
+                Entry entry = t.entries.get(i);
+                if (entry == null) {
+                    if (reusable < 0) {
+                        reusable = i;
+                    }
+                } else if (entry.address.equals(address)) {
+                    t.entries.set(i, new Entry(address, impl));
+                    return;
+                }
+            }
+        }
+        if (reusable >= 0) {
+            t.entries.set(reusable, new Entry(address, impl));
+        } else {
+            if ((t.used + 1) * 4 > (t.mask + 1) * 3) {
+                rebuild(size + 1);
+                put(address, impl);
+                return;
+            }
+            // the entry is published before the key, so a reader that finds the key finds the entry
+            t.entries.set(i, new Entry(address, impl));
+            t.keys.set(i, key);
+            ++t.used;
+        }
+        ++size;
+    }
+
+    synchronized void remove(InetSocketAddress address) {
+        long key = pack(address.getAddress(), address.getPort());
+        if (key == 0) {
+            others.remove(address);
+            return;
+        }
+        Table t = table;
+        for (int i = index(key, t); t.keys.get(i) != 0; i = (i + 1) & t.mask) {
+            Entry entry = t.entries.get(i);
+            if (t.keys.get(i) == key && entry != null && entry.address.equals(address)) {
+                t.entries.set(i, null);
+                --size;
+                return;
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0 && others.isEmpty();
+    }
+
+    /**
+     * Copies the live entries to a new table at most half full with {@code live} entries.
+     * Readers still probing the old table finish there.
+     */
+    private void rebuild(int live) {
+        int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(live * 2 - 1) << 1);
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int j = 0; j <= old.mask; ++j) {
+            Entry entry = old.entries.get(j);
+            if (entry != null) {
+                long key = old.keys.get(j);
+                int i = index(key, t);
+                while (t.keys.get(i) != 0) {
+                    i = (i + 1) & t.mask;
+                }
+                t.entries.set(i, entry);
+                t.keys.set(i, key);
+                ++t.used;
+            }
+        }
+        table = t;
+    }
+
+    private static int index(long key, Table t) {
+        return (int) (key * 0x9E3779B97F4A7C15L >>> 32) & t.mask;
+    }
+
+    /**
+     * @return the IPv4 address and the port packed in a key, or 0 for another kind of address
+     */
+    private static long pack(InetAddress address, int port) {
+        if (!(address instanceof Inet4Address)) {
+            return 0;
+        }
+        // an Inet4Address hashes to its address itself, without the copy getAddress() makes,
+        // entries are compared by the whole address anyway
+        return IPV4_KEY | (address.hashCode() & 0xFFFFFFFFL) << 16 | port;
+    }
+}
@@ -2,17 +2,18 @@ package ru.nsu.ccfit.bogush.net.tou.socket;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TOUInputStream extends InputStream {
     private TOUSocketImpl impl;
-    private int seq;
     private byte[] data;
     private int pos = 0;
     private boolean eof = false;
+    private final ReentrantLock lock = new ReentrantLock(); // held by the reader while it blocks, a monitor would pin a virtual thread
 
     TOUInputStream(TOUSocketImpl impl) {
         this.impl = impl;
-        seq = impl.getInitialReadSEQ();
     }
 
     private boolean closing = false;
@@ -31,21 +32,124 @@ public class TOUInputStream extends InputStream {
     }
 
     @Override
-    public synchronized int read()
+    public int read()
             throws IOException {
-        if (data == null || pos == data.length) {
-            if (eof) return -1;
-            if (impl.isInShut()) throw new IOException("Input shutdown");
-            try {
-                data = impl.fetchData(seq);
-                if (data == null) {
-                    eof = true;
-                    return -1;
-                }
-            } catch (InterruptedException e) { return -1; }
-            pos = 0;
-        }
-
-        return data[pos++];
+        lock.lock();
+        try {
+            if (!fill(true)) return -1;
+            return data[pos++] & 0xff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Doesn't lock, so that it doesn't wait for a reader blocked in {@link #read()};
+     * the estimate is exact for the thread that reads.
+     * @return the unread bytes of the fetched data plus the data received in order since
+     */
+    @Override
+    public int available() {
+        if (eof) return 0;
+        byte[] d = data;
+        int unread = d == null ? 0 : Math.max(d.length - pos, 0);
+        return unread + impl.bufferedData();
+    }
+
+    /**
+     * Blocks until at least one byte is available, then copies the received data
+     * for as long as more of it has already been received in order.
+     */
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException {
+        lock.lock();
+        try {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) return 0;
+            if (!fill(true)) return -1;
+
+            int read = 0;
+            do {
+                int n = Math.min(len - read, data.length - pos);
+                System.arraycopy(data, pos, b, off + read, n);
+                pos += n;
+                read += n;
+            } while (read < len && fill(false));
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long skip(long n)
+            throws IOException {
+        lock.lock();
+        try {
+            long skipped = 0;
+            while (skipped < n && fill(skipped == 0)) {
+                int k = (int) Math.min(n - skipped, data.length - pos);
+                pos += k;
+                skipped += k;
+            }
+            return skipped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the data to {@code out} in the chunks it is fetched in, without copying it again.
+     */
+    @Override
+    public long transferTo(OutputStream out)
+            throws IOException {
+        lock.lock();
+        try {
+            long transferred = 0;
+            while (fill(true)) {
+                out.write(data, pos, data.length - pos);
+                transferred += data.length - pos;
+                pos = data.length;
+            }
+            return transferred;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure there are unread bytes in {@code data}, fetching the data received since
+     * the previous fetch if needed.
+     * @param block whether to wait for data to be received
+     * @return {@code false} if the end of the stream is reached or, when not blocking,
+     *     no data has been received yet
+     */
+    private boolean fill(boolean block)
+            throws IOException {
+        if (data != null && pos < data.length) return true;
+        if (eof) return false;
+        if (impl.isInShut()) {
+            if (block) throw new IOException("Input shutdown");
+            return false;
+        }
+        byte[] fetched;
+        try {
+            fetched = impl.fetchData(block);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        if (fetched == null) {
+            if (block) {
+                eof = true;
+            }
+            return false;
+        }
+        data = fetched;
+        pos = 0;
+        return true;
     }
 }
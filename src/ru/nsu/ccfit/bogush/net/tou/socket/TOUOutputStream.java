@@ -4,57 +4,225 @@ import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Buffers written bytes in a circular send buffer until the flusher moves them into segments
+ * of at most {@link #MAX_SEGMENT_SIZE} bytes. A write blocks while the buffer is full.
+ * The buffer size is set with {@link java.net.SocketOptions#SO_SNDBUF}.
+ */
 public class TOUOutputStream extends OutputStream {
-    private static final int BUFFER_SIZE = 1<<10;
+    static final int MAX_SEGMENT_SIZE = 1<<10; // bytes of data in one segment
+    static final int DEFAULT_BUFFER_SIZE = 1<<16;
 
     private TOUSocketImpl impl;
     private int seq;
-    private byte[] buffer = new byte[BUFFER_SIZE];
-    private int pos = 0;
+    private byte[] buffer;
+    private int head = 0; // the first byte that hasn't been flushed
+    private int count = 0;
+    private final ReentrantLock lock = new ReentrantLock(); // a monitor would pin a blocked virtual thread
+    private final Condition spaceAvailable = lock.newCondition();
+    private volatile Runnable spaceListener; // run by the flusher when it frees space
 
-    TOUOutputStream(TOUSocketImpl impl) {
+    TOUOutputStream(TOUSocketImpl impl, int bufferSize) {
         this.impl = impl;
+        this.buffer = new byte[bufferSize];
         seq = impl.getInitialWriteSEQ();
     }
 
     @Override
-    public synchronized void write(int b)
+    public void write(int b)
             throws IOException {
+        lock.lock();
+        try {
+            awaitSpace();
+            buffer[(head + count) % buffer.length] = (byte) b;
+            ++count;
+            if (count == 1) {
+                dataAvailable();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies as much of the data as fits into the free space of the buffer at once
+     * and waits for the flusher only when the buffer is full.
+     */
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException {
+        lock.lock();
+        try {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0) {
+                awaitSpace();
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                boolean wasEmpty = count == 0;
+                count += n;
+                off += n;
+                len -= n;
+                if (wasEmpty) {
+                    dataAvailable();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies as much of the data as fits into the free space of the buffer without blocking.
+     * @return the number of bytes copied
+     */
+    int write(ByteBuffer src)
+            throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            int written = 0;
+            while (src.hasRemaining() && count < buffer.length) {
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(src.remaining(), Math.min(buffer.length - count, buffer.length - tail));
+                src.get(buffer, tail, n);
+                boolean wasEmpty = count == 0;
+                count += n;
+                written += n;
+                if (wasEmpty) {
+                    dataAvailable();
+                }
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isFull() {
+        lock.lock();
+        try {
+            return count == buffer.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the listener the flusher runs, on the communicator's thread, whenever it frees space in the buffer.
+     * It must not block.
+     */
+    void setSpaceListener(Runnable listener) {
+        spaceListener = listener;
+    }
+
+    private void checkOpen()
+            throws IOException {
+        impl.checkAborted();
         if (impl.isClosedOrPending()) throw new IOException("Socket closed");
         if (impl.isOutShut()) throw new IOException("Output shutdown");
+    }
+
+    private void awaitSpace()
+            throws IOException {
+        checkOpen();
 
-        while (pos == buffer.length) {
-            try {
-                wait();
-            } catch (InterruptedException ignored) {}
+        while (count == buffer.length) {
+            spaceAvailable.awaitUninterruptibly();
+            impl.checkAborted();
         }
-        buffer[pos] = (byte) b;
-        ++pos;
-        if (pos == 1) {
-            try {
-                impl.communicator.implsWithData.put(impl);
-            } catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * Wakes the writers waiting for space, so that they find out the connection has been aborted.
+     */
+    void wakeWriters() {
+        lock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
+    private void dataAvailable() {
+        impl.communicator.scheduleFlush(impl);
+    }
+
     int available() {
-        return pos;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    synchronized int getCurrentSEQ() {
-        return seq;
+    int getCurrentSEQ() {
+        lock.lock();
+        try {
+            return seq;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Resizes the buffer keeping the data that hasn't been flushed yet,
+     * the buffer doesn't shrink below the amount of that data.
+     */
+    void setBufferSize(int size) {
+        lock.lock();
+        try {
+            byte[] resized = new byte[Math.max(size, count)];
+            for (int i = 0; i < count; ++i) {
+                resized[i] = buffer[(head + i) % buffer.length];
+            }
+            buffer = resized;
+            head = 0;
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        notifySpaceListener();
+    }
 
+    /**
+     * Moves up to {@link #MAX_SEGMENT_SIZE} buffered bytes into a new segment. The segment's SEQ is the sequence
+     * number of its first byte, so the stream's SEQ advances by the number of bytes flushed.
+     * @param optionsSize the number of bytes to reserve for header options
+     */
+    TCPSegment flushIntoSegment(int optionsSize) {
+        lock.lock();
+        try {
+            int size = Math.min(count, MAX_SEGMENT_SIZE);
+            TCPSegment segment = new TCPSegment(size, optionsSize);
+            byte[] dst = segment.getBytes();
+            int first = Math.min(size, buffer.length - head);
+            System.arraycopy(buffer, head, dst, segment.getDataOffset(), first);
+            System.arraycopy(buffer, 0, dst, segment.getDataOffset() + first, size - first);
+            segment.setSEQ(seq).setDataSize(size);
+            seq += size;
+            head = (head + size) % buffer.length;
+            count -= size;
+            spaceAvailable.signalAll();
+            return segment;
+        } finally {
+            lock.unlock();
+            notifySpaceListener();
+        }
+    }
 
-    synchronized TCPSegment flushIntoSegment() {
-        TCPSegment segment = new TCPSegment(pos);
-        byte[] dst = segment.getBytes();
-        System.arraycopy(buffer, 0, dst, segment.getDataOffset(), pos);
-        pos = 0;
-        ++seq;
-        notifyAll();
-        return segment;
+    private void notifySpaceListener() {
+        Runnable l = spaceListener;
+        if (l != null) {
+            l.run();
+        }
     }
 }
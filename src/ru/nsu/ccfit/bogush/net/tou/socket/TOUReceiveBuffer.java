@@ -0,0 +1,275 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBefore;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBeforeOrEqual;
+
+/**
+ * <p>
+ *     Receiver side of the sliding window. Received data is copied into a ring of bytes indexed
+ *     by sequence number modulo the ring's length, next to a bitmap that tells which bytes
+ *     of the ring have been received. Inserting a segment, rejecting a duplicate and
+ *     taking the data received in order cost the same however many segments are buffered.
+ * </p>
+ *
+ * <p>
+ *     The ring holds the bytes from {@code read}, the next byte to be read, to {@code high},
+ *     the byte that follows the highest received one. The bytes before {@code nxt} are received
+ *     in order and ready to be read, the bytes between {@code nxt} and {@code high} have been received
+ *     out of order after a gap. Data that doesn't fit in the ring is dropped, the peer will resend it.
+ * </p>
+ *
+ * <p>
+ *     Not thread safe, the owner guards it with its own lock.
+ * </p>
+ */
+class TOUReceiveBuffer {
+    private static final int WORD_BITS = Long.SIZE;
+
+    private byte[] data;
+    private long[] present; // one bit per byte of data
+    private int mask;
+    private int read; // sequence number of the next byte to be read
+    private int nxt; // sequence number of the next byte expected in order
+    private int high; // sequence number that follows the highest received byte
+    private int lastOutOfOrderSEQ; // the latest segment received out of order
+
+    /**
+     * @param capacity the least number of bytes the ring must hold, it is rounded up to a power of two
+     */
+    TOUReceiveBuffer(int initialSEQ, int capacity) {
+        read = nxt = high = lastOutOfOrderSEQ = initialSEQ;
+        allocate(capacity);
+    }
+
+    /**
+     * Copies the segment's data into the ring. The bytes received before are overwritten
+     * with the same data, so a segment overlapping the data read already is accepted
+     * for its new bytes.
+     * @return {@code false} if the segment is a duplicate or doesn't fit in the ring
+     */
+    boolean receive(TCPSegment segment) {
+        int seq = segment.getSEQ();
+        int end = segment.getEndSEQ();
+        if (segment.dataSize() > segment.size() - segment.getDataOffset()) {
+            return false;
+        }
+        if (!seqBefore(nxt, end) || seqBefore(read + data.length, end)) {
+            return false;
+        }
+        int from = seqBefore(seq, nxt) ? nxt : seq;
+        if (nextClear(from, end) == end) {
+            return false;
+        }
+        copyIn(segment, from - seq, from, end - from);
+        setPresent(from, end);
+        if (seqBefore(high, end)) {
+            high = end;
+        }
+        if (seqBefore(nxt, seq)) {
+            lastOutOfOrderSEQ = seq;
+        }
+        nxt = nextClear(nxt, high);
+        return true;
+    }
+
+    /**
+     * Advances past the segment without buffering it if it continues the data received in order.
+     * Used when nobody is going to read the data but it still has to be acknowledged.
+     */
+    void skip(TCPSegment segment) {
+        int end = segment.getEndSEQ();
+        if (seqBeforeOrEqual(segment.getSEQ(), nxt) && seqBefore(nxt, end)) {
+            clearPresent(read, high);
+            read = nxt = high = end;
+        }
+    }
+
+    /**
+     * Discards every buffered byte, including those received out of order.
+     */
+    void clear() {
+        clearPresent(read, high);
+        read = high = nxt;
+    }
+
+    /**
+     * Takes at most {@code max} bytes received in order.
+     * @return the bytes or {@code null} if there are none
+     */
+    byte[] take(int max) {
+        int n = Math.min(available(), max);
+        if (n <= 0) {
+            return null;
+        }
+        byte[] taken = new byte[n];
+        int index = read & mask;
+        int first = Math.min(n, data.length - index);
+        System.arraycopy(data, index, taken, 0, first);
+        System.arraycopy(data, 0, taken, first, n - first);
+        clearPresent(read, read + n);
+        read += n;
+        return taken;
+    }
+
+    /**
+     * Copies as many bytes received in order as {@code dst} has room for into it.
+     * @return the number of bytes copied
+     */
+    int take(ByteBuffer dst) {
+        int n = Math.min(available(), dst.remaining());
+        int index = read & mask;
+        int first = Math.min(n, data.length - index);
+        dst.put(data, index, first);
+        dst.put(data, 0, n - first);
+        clearPresent(read, read + n);
+        read += n;
+        return n;
+    }
+
+    /**
+     * @return the number of bytes received in order but not read yet
+     */
+    int available() {
+        return nxt - read;
+    }
+
+    boolean hasOutOfOrderData() {
+        return nxt != high;
+    }
+
+    int getNextSEQ() {
+        return nxt;
+    }
+
+    /**
+     * Describes the data received after a gap as SACK blocks: contiguous ranges of received
+     * bytes beyond {@code nxt}. As RFC 2018 recommends, the first block contains the latest
+     * segment received out of order, so the sender learns of it even if there are more blocks
+     * than fit in a segment.
+     * @return at most {@code maxBlocks} pairs of left and right edges, see {@link TCPSegment#getSACKBlocks()}
+     */
+    int[] getSACKBlocks(int maxBlocks) {
+        List<int[]> blocks = new ArrayList<>();
+        int left = nextSet(nxt, high);
+        while (left != high) {
+            int right = nextClear(left, high);
+            blocks.add(new int[] {left, right});
+            left = nextSet(right, high);
+        }
+        for (int i = 0; i < blocks.size(); ++i) {
+            int[] b = blocks.get(i);
+            if (seqBeforeOrEqual(b[0], lastOutOfOrderSEQ) && seqBefore(lastOutOfOrderSEQ, b[1])) {
+                Collections.swap(blocks, 0, i);
+                break;
+            }
+        }
+
+        int count = Math.min(blocks.size(), maxBlocks);
+        int[] edges = new int[count * 2];
+        for (int i = 0; i < count; ++i) {
+            edges[2 * i] = blocks.get(i)[0];
+            edges[2 * i + 1] = blocks.get(i)[1];
+        }
+        return edges;
+    }
+
+    /**
+     * Reallocates the ring keeping the buffered data, the ring doesn't shrink below it.
+     */
+    void setCapacity(int capacity) {
+        byte[] oldData = data;
+        long[] oldPresent = present;
+        int oldMask = mask;
+        allocate(Math.max(capacity, high - read));
+        for (int seq = read; seqBefore(seq, high); ++seq) {
+            int i = seq & oldMask;
+            if ((oldPresent[i / WORD_BITS] & 1L << i) != 0) {
+                data[seq & mask] = oldData[i];
+                setPresent(seq, seq + 1);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, WORD_BITS) - 1) << 1;
+        data = new byte[length];
+        present = new long[length / WORD_BITS];
+        mask = length - 1;
+    }
+
+    /**
+     * Copies {@code length} bytes of the segment's data starting at {@code offset} to the place of {@code seq}.
+     */
+    private void copyIn(TCPSegment segment, int offset, int seq, int length) {
+        int index = seq & mask;
+        int first = Math.min(length, data.length - index);
+        segment.getData(offset, data, index, first);
+        segment.getData(offset + first, data, 0, length - first);
+    }
+
+    /*
+     * The ring's length is a multiple of a word, so a word never wraps around
+     * and the bitmap can be walked a word at a time.
+     */
+
+    private void setPresent(int from, int to) {
+        while (seqBefore(from, to)) {
+            int i = from & mask;
+            int n = Math.min(WORD_BITS - i % WORD_BITS, to - from);
+            present[i / WORD_BITS] |= bits(i, n);
+            from += n;
+        }
+    }
+
+    private void clearPresent(int from, int to) {
+        while (seqBefore(from, to)) {
+            int i = from & mask;
+            int n = Math.min(WORD_BITS - i % WORD_BITS, to - from);
+            present[i / WORD_BITS] &= ~bits(i, n);
+            from += n;
+        }
+    }
+
+    private static long bits(int index, int n) {
+        return (n == WORD_BITS ? -1L : (1L << n) - 1) << index;
+    }
+
+    /**
+     * @return the first byte from {@code from} on that hasn't been received, {@code to} if there is none before it
+     */
+    private int nextClear(int from, int to) {
+        while (seqBefore(from, to)) {
+            int i = from & mask;
+            long word = ~present[i / WORD_BITS] >>> i;
+            if (word != 0) {
+                int next = from + Long.numberOfTrailingZeros(word);
+                return seqBefore(next, to) ? next : to;
+            }
+            from += WORD_BITS - i % WORD_BITS;
+        }
+        return to;
+    }
+
+    /**
+     * @return the first received byte from {@code from} on, {@code to} if there is none before it
+     */
+    private int nextSet(int from, int to) {
+        while (seqBefore(from, to)) {
+            int i = from & mask;
+            long word = present[i / WORD_BITS] >>> i;
+            if (word != 0) {
+                int next = from + Long.numberOfTrailingZeros(word);
+                return seqBefore(next, to) ? next : to;
+            }
+            from += WORD_BITS - i % WORD_BITS;
+        }
+        return to;
+    }
+}
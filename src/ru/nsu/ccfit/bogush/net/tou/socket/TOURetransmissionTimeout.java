@@ -0,0 +1,88 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Retransmission timeout (RTO) of one connection computed from measured round-trip times
+ *     as described in RFC 6298: a smoothed RTT and its variance are updated with every sample,
+ *     and {@code RTO = SRTT + 4 * RTTVAR} clamped to {@code [MIN_RTO, MAX_RTO]}.
+ * </p>
+ *
+ * <p>
+ *     A segment is sampled when it is acknowledged, unless it has been retransmitted
+ *     (Karn's algorithm) or was sent before the latest retransmission: such a segment may
+ *     have been acknowledged only after the lost one was repaired, which would inflate the sample.
+ * </p>
+ *
+ * <p>
+ *     Each expiration doubles the timeout (exponential backoff) until an acknowledgement
+ *     of new data shows that the connection makes progress again.
+ * </p>
+ *
+ * All times are in nanoseconds of {@link System#nanoTime()}.
+ */
+class TOURetransmissionTimeout {
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+    private long backedOffRTO = INITIAL_RTO;
+    private boolean backedOff = false; // the timeout has expired since the latest sign of progress
+    private long lastRetransmissionTime = System.nanoTime();
+
+    synchronized long get() {
+        return backedOffRTO;
+    }
+
+    /**
+     * @param sendTime the time the acknowledged segment was sent at
+     */
+    synchronized void sample(long sendTime) {
+        if (sendTime - lastRetransmissionTime < 0) return;
+        long rtt = System.nanoTime() - sendTime;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.min(Math.max(srtt + 4 * rttvar, MIN_RTO), MAX_RTO);
+        backedOffRTO = rto;
+        backedOff = false;
+    }
+
+    synchronized void retransmitted() {
+        lastRetransmissionTime = System.nanoTime();
+    }
+
+    synchronized void backoff() {
+        backedOffRTO = Math.min(backedOffRTO * 2, MAX_RTO);
+        backedOff = true;
+    }
+
+    synchronized void resetBackoff() {
+        backedOffRTO = rto;
+        backedOff = false;
+    }
+
+    /**
+     * @return whether the timeout has expired and been backed off since an acknowledgement
+     *     of new data last reset it, that is the expiration isn't the first one of a loss episode
+     */
+    synchronized boolean isBackedOff() {
+        return backedOff;
+    }
+
+    synchronized long getSmoothedRTT() {
+        return srtt;
+    }
+
+    synchronized long getRTTVariance() {
+        return rttvar;
+    }
+}
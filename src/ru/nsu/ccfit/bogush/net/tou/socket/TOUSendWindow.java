@@ -0,0 +1,176 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBefore;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBeforeOrEqual;
+
+/**
+ * <p>
+ *     Sender side of the sliding window. Keeps data segments that have been sent
+ *     but not yet acknowledged in the order of their sequence numbers.
+ * </p>
+ *
+ * <p>
+ *     Sequence and acknowledgement numbers count bytes. An acknowledgement is cumulative:
+ *     ACK number {@code n} acknowledges every byte before {@code n}. At most {@code size}
+ *     bytes may be in flight at a time, less if the congestion window is smaller, and no byte
+ *     may be sent beyond the window the peer has advertised. A single segment is always allowed
+ *     to be sent into an empty window so that a small window cannot stall the stream;
+ *     when the peer's window is closed such a segment probes whether it has opened.
+ * </p>
+ *
+ * <p>
+ *     The peer's window is taken from the newest segment: the one with the greatest SEQ and,
+ *     among those, with the greatest ACK (the rule of RFC 793), so that reordered segments
+ *     can't make it shrink back.
+ * </p>
+ *
+ * <p>
+ *     Selective acknowledgements mark segments the peer has received out of order.
+ *     The segments before the highest selectively acknowledged byte that are not marked
+ *     are the holes to be retransmitted during loss recovery.
+ * </p>
+ */
+class TOUSendWindow {
+    private final ArrayDeque<TOUSegment> unacknowledged = new ArrayDeque<>();
+    private int size;
+    private int una; // oldest unacknowledged sequence number
+    private int nxt; // sequence number of the next byte to be sent
+    private int highSACKed; // sequence number that follows the highest selectively acknowledged byte
+    private int peerWindow;
+    private int peerWindowSEQ; // SEQ of the segment the peer's window was taken from
+    private int peerWindowACK; // ACK of that segment, the peer's window starts there
+
+    /**
+     * @param peerSEQ the peer's initial sequence number
+     * @param peerWindow the window advertised in the peer's SYN or SYN-ACK
+     */
+    TOUSendWindow(int initialSEQ, int size, int peerSEQ, int peerWindow) {
+        this.una = initialSEQ;
+        this.nxt = initialSEQ;
+        this.highSACKed = initialSEQ;
+        this.size = size;
+        this.peerWindowSEQ = peerSEQ;
+        this.peerWindowACK = initialSEQ;
+        this.peerWindow = peerWindow;
+    }
+
+    synchronized boolean canSend(int bytes, int congestionWindow) {
+        if (unacknowledged.isEmpty()) return true;
+        return bytesInFlight() + bytes <= Math.min(size, congestionWindow)
+                && seqBeforeOrEqual(nxt + bytes, peerWindowACK + peerWindow);
+    }
+
+    /**
+     * Takes the peer's window from the segment unless an older one has arrived late.
+     * @return {@code true} if the window has changed
+     */
+    synchronized boolean updatePeerWindow(int seq, int ack, int window) {
+        if (seqBefore(peerWindowSEQ, seq) || seq == peerWindowSEQ && seqBeforeOrEqual(peerWindowACK, ack)) {
+            boolean changed = peerWindowACK + peerWindow != ack + window;
+            peerWindowSEQ = seq;
+            peerWindowACK = ack;
+            peerWindow = window;
+            return changed;
+        }
+        return false;
+    }
+
+
+    synchronized TOUSegment oldest() {
+        return unacknowledged.peekFirst();
+    }
+
+    synchronized boolean isEmpty() {
+        return unacknowledged.isEmpty();
+    }
+
+    synchronized void add(TOUSegment segment) {
+        unacknowledged.addLast(segment);
+        nxt = segment.getEndSEQ();
+    }
+
+    /**
+     * Removes every segment whose bytes are all before {@code ack}, passing each one to {@code onAcknowledged}.
+     *
+     * @return the number of bytes the window has slid by, {@code 0} if the acknowledgement is a duplicate,
+     *     an old one or acknowledges bytes that have not been sent yet
+     */
+    synchronized int acknowledge(int ack, Consumer<TOUSegment> onAcknowledged) {
+        if (!seqBefore(una, ack) || seqBefore(nxt, ack)) {
+            return 0;
+        }
+        int acknowledged = ack - una;
+        while (!unacknowledged.isEmpty() && seqBeforeOrEqual(unacknowledged.peekFirst().getEndSEQ(), ack)) {
+            onAcknowledged.accept(unacknowledged.pollFirst());
+        }
+        una = ack;
+        // keeps highSACKed inside the window, an old value would wrap around with the sequence numbers
+        if (seqBefore(highSACKed, ack)) {
+            highSACKed = ack;
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Marks the segments that lie entirely within one of the SACK {@code blocks}.
+     * Blocks outside of the window are ignored.
+     */
+    synchronized void sack(int[] blocks) {
+        for (int i = 0; i + 1 < blocks.length; i += 2) {
+            int left = blocks[i];
+            int right = blocks[i + 1];
+            if (!seqBefore(left, right) || !seqBefore(una, right) || seqBefore(nxt, right)) continue;
+            for (TOUSegment segment : unacknowledged) {
+                if (seqBeforeOrEqual(right, segment.getSEQ())) break;
+                if (seqBeforeOrEqual(left, segment.getSEQ()) && seqBeforeOrEqual(segment.getEndSEQ(), right)) {
+                    segment.markSACKed();
+                }
+            }
+            if (seqBefore(highSACKed, right)) {
+                highSACKed = right;
+            }
+        }
+    }
+
+    /**
+     * @return the segments starting at {@code from} or later that haven't been selectively
+     *     acknowledged although some data after them has
+     */
+    synchronized List<TOUSegment> holes(int from) {
+        List<TOUSegment> holes = new ArrayList<>();
+        for (TOUSegment segment : unacknowledged) {
+            if (seqBeforeOrEqual(highSACKed, segment.getSEQ())) break;
+            if (!segment.isSACKed() && seqBeforeOrEqual(from, segment.getSEQ())) {
+                holes.add(segment);
+            }
+        }
+        return holes;
+    }
+
+    synchronized int bytesInFlight() {
+        return nxt - una;
+    }
+
+    synchronized int getUnacknowledgedSEQ() {
+        return una;
+    }
+
+    synchronized int getNextSEQ() {
+        return nxt;
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized void setSize(int size) {
+        this.size = size;
+    }
+}
@@ -1,120 +1,303 @@
 package ru.nsu.ccfit.bogush.net.tou.socket;
 
 import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
-import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType;
 import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+import ru.nsu.ccfit.bogush.util.concurrent.HashedTimingWheel;
+import ru.nsu.ccfit.bogush.util.concurrent.VirtualThreads;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType.*;
 
+/**
+ * <p>
+ *     Sends and receives the segments of a group of impls (see {@link TOUSocketImpl}) through one {@link Transport}.
+ *     A communicator either has threads of its own: receivers, flushers and a pool driving its timers,
+ *     or does all its work on {@link EventLoop}s shared with other communicators.
+ * </p>
+ *
+ * <p>
+ *     A communicator may receive through several transports, shards, bound to the same address
+ *     with {@code SO_REUSEPORT}. The kernel spreads the datagrams among them by a hash of the
+ *     sender's address, so all the segments of a connection arrive at one shard in order,
+ *     while different connections are received and handled on different cores.
+ *     Each shard has a receiver thread of its own or is registered with its own loop.
+ * </p>
+ *
+ * <p>
+ *     Each shard also has a {@link Flusher} that sends the data of the connections whose segments
+ *     go through the shard, so sending is spread over the cores too.
+ * </p>
+ */
 class TOUSharedCommunicator {
-    /*
-     * The UDP length field size sets a theoretical limit of 65,535 bytes (8 byte header + 65,527 bytes of data)
-     * for a UDP datagram. However the actual limit for the data length, which is imposed by the underlying IPv4
-     * protocol, is 65,507 bytes (65,535 − 8 byte UDP header − 20 byte IP header). (Wikipedia)
-     */
-    private static final int UDP_PACKET_DATA_SIZE = 65507;
-    private static final int SWEEPING_PERIOD = 100; // milliseconds
+    static final int TIMING_WHEEL_TICK = 1; // milliseconds
+    static final int TIMING_WHEEL_SIZE = 512;
 
-    final DatagramSocket datagramSocket;
+    final Transport transport; // the first shard
+    private final SegmentReceiver[] shards;
+    private final Flusher[] flushers; // one per shard
     InetSocketAddress localSocketAddress;
-    private final HashMap<InetSocketAddress, TOUSocketImpl> implMap = new HashMap<>();
-    private final SegmentReceiver segmentReceiver = new SegmentReceiver();
-    final LinkedBlockingQueue<TOUSocketImpl> implsWithData;
-    private final ScheduledThreadPoolExecutor threadPoolExecutor;
+    private final TOUDemuxTable impls = new TOUDemuxTable();
+    private volatile TOUSocketImpl connectedImpl; // the only impl if the transport is connected
+    final HashedTimingWheel timingWheel;
+    private final ScheduledThreadPoolExecutor threadPoolExecutor; // null if the communicator runs on a loop
+    private final EventLoop loop;
+    private final Executor executor;
+    private final ThreadFactory threadFactory;
     private boolean shouldStop = false;
 
-    TOUSharedCommunicator(InetSocketAddress address, int corePoolSize)
-            throws SocketException {
-        datagramSocket = new DatagramSocket(address);
+    /**
+     * @param shardCount the number of transports to receive through, more than one requires {@code SO_REUSEPORT}
+     * @param threadFactory creates the receivers, the flushers and the threads of the pool,
+     *     virtual threads if it is {@link VirtualThreads#factory()}
+     */
+    TOUSharedCommunicator(InetSocketAddress address, int corePoolSize, String transportName, int shardCount,
+                          ThreadFactory threadFactory)
+            throws IOException {
+        shards = openShards(address, shardCount, a -> Transport.open(transportName, a, shardCount > 1));
+        transport = shards[0].transport;
         localSocketAddress = address;
-        threadPoolExecutor = new ScheduledThreadPoolExecutor(corePoolSize);
-        implsWithData = new LinkedBlockingQueue<>();
+        this.threadFactory = threadFactory;
+        threadPoolExecutor = new ScheduledThreadPoolExecutor(corePoolSize, threadFactory);
+        executor = threadPoolExecutor;
+        loop = null;
+        timingWheel = new HashedTimingWheel(TIMING_WHEEL_TICK, TimeUnit.MILLISECONDS, TIMING_WHEEL_SIZE);
+        flushers = new Flusher[shardCount];
+        for (int i = 0; i < shardCount; ++i) {
+            flushers[i] = new Flusher(null);
+        }
+    }
+
+    /**
+     * Creates a communicator over {@link DatagramChannelTransport}s that runs on the loops of the {@code group},
+     * each shard on the next loop.
+     */
+    TOUSharedCommunicator(InetSocketAddress address, EventLoopGroup group, int shardCount)
+            throws IOException {
+        shards = openShards(address, shardCount, a -> new DatagramChannelTransport(a, shardCount > 1));
+        transport = shards[0].transport;
+        localSocketAddress = address;
+        threadPoolExecutor = null;
+        threadFactory = null;
+        loop = group.next();
+        executor = loop;
+        shards[0].loop = loop;
+        for (int i = 1; i < shards.length; ++i) {
+            shards[i].loop = group.next();
+        }
+        timingWheel = loop.timingWheel;
+        flushers = new Flusher[shardCount];
+        for (int i = 0; i < shardCount; ++i) {
+            flushers[i] = new Flusher(shards[i].loop);
+        }
+    }
+
+    private interface TransportOpener {
+        Transport open(InetSocketAddress address)
+                throws IOException;
     }
 
-    private class SegmentReceiver extends Thread {
-        private SegmentReceiver() {
-            super("TOUSegmentReceiver");
+    /**
+     * Binds the first shard to the {@code address} and the rest to the port the first one is bound to.
+     */
+    private SegmentReceiver[] openShards(InetSocketAddress address, int shardCount, TransportOpener opener)
+            throws IOException {
+        SegmentReceiver[] opened = new SegmentReceiver[shardCount];
+        try {
+            for (int i = 0; i < shardCount; ++i) {
+                opened[i] = new SegmentReceiver(opener.open(address));
+                if (i == 0) {
+                    address = new InetSocketAddress(address.getAddress(), opened[0].transport.getLocalSocketAddress().getPort());
+                }
+            }
+        } catch (IOException e) {
+            for (SegmentReceiver shard : opened) {
+                if (shard != null) {
+                    shard.transport.close();
+                }
+            }
+            throw e;
+        }
+        return opened;
+    }
+
+    /**
+     * Receives the segments of one shard, on a thread of its own or on its {@link EventLoop}.
+     */
+    private class SegmentReceiver implements Runnable, EventLoop.Receiver {
+        private final Transport transport;
+        private EventLoop loop;
+
+        private SegmentReceiver(Transport transport) {
+            this.transport = transport;
         }
 
         @Override
         public void run() {
             try {
-                DatagramPacket packet = new DatagramPacket(new byte[UDP_PACKET_DATA_SIZE], UDP_PACKET_DATA_SIZE);
                 while (!shouldStop) {
+                    TOUSegment segment;
                     try {
-                        datagramSocket.receive(packet);
+                        segment = transport.receive(localSocketAddress);
                     } catch (SocketTimeoutException e) {
                         System.out.println("receiver timed out");
                         continue;
                     }
-                    InetAddress address = packet.getAddress();
-                    int port = packet.getPort();
-                    InetSocketAddress socketAddress = new InetSocketAddress(address, port);
-                    TOUSegment segment = new TOUSegment(new TCPSegment(packet.getData()), socketAddress, localSocketAddress);
-                    TCPSegmentType type = TCPSegmentType.typeOf(segment);
-                    TOUSocketImpl impl;
-
-                    if (type == SYN) {
-                        // SYN segment addressed to server socket associated with local address
-                        impl = implMap.get(localSocketAddress);
-                    } else {
-                        // other segments addressed to socket associated with remote address
-                        impl = implMap.get(socketAddress);
-                    }
-
-                    if (impl == null) {
-                        continue;
-                    }
-
-                    impl.handle(segment);
+                    dispatchDatagram(segment);
                 }
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
             }
         }
+
+        @Override
+        public void receiveReady(int max) {
+            DatagramChannelTransport channelTransport = (DatagramChannelTransport) transport;
+            try {
+                TOUSegment segment;
+                for (int i = 0; i < max && (segment = channelTransport.receiveNow(localSocketAddress)) != null; ++i) {
+                    dispatchDatagram(segment);
+                }
+            } catch (InterruptedException | IOException e) {
+                if (!shouldStop) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatches every segment bundled in the {@code datagram} (see {@link #send(List)}) and releases it.
+     * Each segment is {@link TCPSegment#length()} bytes long, a datagram that holds one segment
+     * is dispatched as is, and so is a segment whose header lies about its length.
+     */
+    private void dispatchDatagram(TOUSegment datagram)
+            throws InterruptedException, IOException {
+        int length = datagram.length();
+        if (length >= datagram.size() || length < TCPSegment.HEADER_SIZE) {
+            dispatch(datagram);
+            return;
+        }
+        try {
+            ByteBuffer bytes = datagram.getByteBuffer();
+            while (bytes.remaining() >= TCPSegment.HEADER_SIZE) {
+                int position = bytes.position();
+                length = new TCPSegment(bytes).length();
+                if (length < TCPSegment.HEADER_SIZE || length > bytes.remaining()) {
+                    break;
+                }
+                bytes.limit(position + length);
+                TOUSegment segment = new TOUSegment(new TCPSegment(bytes),
+                        datagram.getSrcAddress(), datagram.getSrcPort(), datagram.getDst());
+                bytes.position(position + length).limit(datagram.size());
+                dispatch(segment.setBundle(datagram));
+            }
+        } finally {
+            datagram.release();
+        }
+    }
+
+    /**
+     * Passes the segment to the impl it is addressed to and releases it.
+     * A connected transport receives the segments of its only impl, so they aren't looked up.
+     */
+    private void dispatch(TOUSegment segment)
+            throws InterruptedException, IOException {
+        TOUSocketImpl impl = connectedImpl;
+        if (impl == null) {
+            // segments addressed to socket associated with remote address,
+            // the server socket associated with local address takes SYNs and the segments
+            // of connections that haven't been accepted yet (see TOUAcceptQueue)
+            impl = impls.get(segment.getSrcAddress(), segment.getSrcPort());
+            if (impl == null) {
+                impl = impls.get(localSocketAddress.getAddress(), localSocketAddress.getPort());
+            }
+        }
+
+        try {
+            if (impl != null) {
+                impl.handle(segment);
+            }
+        } finally {
+            segment.release();
+        }
     }
 
     void start() {
-        segmentReceiver.start();
-        startSweeper();
-        startFlusher();
+        if (loop != null) {
+            for (SegmentReceiver shard : shards) {
+                shard.loop.register((DatagramChannelTransport) shard.transport, shard);
+            }
+            return;
+        }
+        for (SegmentReceiver shard : shards) {
+            newThread(shard, "TOUSegmentReceiver").start();
+        }
+        for (Flusher flusher : flushers) {
+            flusher.thread = newThread(flusher, "TOUFlusher");
+            flusher.thread.start();
+        }
+        startTimingWheel();
     }
 
-    private void send(TOUSegment segment)
-            throws IOException {
-        datagramSocket.send(new DatagramPacket(segment.getBytes(), segment.size()));
+    private Thread newThread(Runnable task, String name) {
+        Thread thread = threadFactory.newThread(task);
+        thread.setName(name);
+        return thread;
     }
 
-    private static final RuntimeException SEGMENT_TIMED_OUT = new RuntimeException("segment timed out") {
-        @Override
-        public synchronized Throwable fillInStackTrace() {
-            super.fillInStackTrace();
-            return this;
+    /**
+     * Sends the segment through the shard the destination's hash picks, any shard would do
+     * since they are bound to the same address.
+     */
+    void send(TOUSegment segment)
+            throws IOException {
+        if (shards.length == 1) {
+            transport.send(segment);
+        } else {
+            shards[shardOf(segment.getDst())].transport.send(segment);
         }
-    };
+    }
 
-    ScheduledFuture<?> sendRepeatedly(TOUSegment segment, long sendingPeriod, TimeUnit timeUnit)
-            throws InterruptedException {
-        return threadPoolExecutor.scheduleAtFixedRate(() -> {
-            try {
-                send(segment);
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e.getMessage());
+    private int shardOf(InetSocketAddress peer) {
+        return shards.length == 1 ? 0 : Math.floorMod(peer.hashCode(), shards.length);
+    }
+
+
+    /**
+     * Sends the segments, all addressed to one peer, packing consecutive ones into datagrams
+     * of at most {@link Transport#MAX_DATAGRAM_SIZE} bytes. The peer's receiver unpacks them
+     * by the lengths in their headers, a segment too big to share a datagram is sent alone.
+     */
+    void send(List<TOUSegment> segments)
+            throws IOException {
+        for (int i = 0, j; i < segments.size(); i = j) {
+            int size = segments.get(i).length();
+            for (j = i + 1; j < segments.size() && size + segments.get(j).length() <= Transport.MAX_DATAGRAM_SIZE; ++j) {
+                size += segments.get(j).length();
             }
-            if (segment.timedOut()) {
-                throw SEGMENT_TIMED_OUT;
+            if (j == i + 1) {
+                send(segments.get(i));
+                continue;
             }
-        }, 0, sendingPeriod, timeUnit);
+            ByteBuffer datagram = ByteBuffer.allocate(size);
+            for (int k = i; k < j; ++k) {
+                ByteBuffer bytes = segments.get(k).getByteBuffer();
+                bytes.limit(segments.get(k).length());
+                datagram.put(bytes);
+            }
+            datagram.flip();
+            TOUSegment first = segments.get(i);
+            send(new TOUSegment(new TCPSegment(datagram), first.getSrc(), first.getDst()));
+        }
     }
 
     void sendOnce(TOUSegment segment) {
-        threadPoolExecutor.execute(() -> {
+        executor.execute(() -> {
             try {
                 send(segment);
             } catch (IOException e) {
@@ -124,59 +307,125 @@ class TOUSharedCommunicator {
     }
 
     /**
-     * sweeper is a task that, when periodically executed, removes timed out
-     * segments from queues of each impl in {@code implMap}.
+     * Asks the flusher of the impl's shard to send the data and the pending acknowledgement of the {@code impl}.
+     * An impl waits in the flusher's queue at most once however many times it is scheduled.
      */
-    private void startSweeper() {
-        threadPoolExecutor.scheduleAtFixedRate(() -> {
-            for (TOUSocketImpl impl : implMap.values()) {
-                impl.sweepTimedOutSegmentsFromQueues();
-            }
-        }, SWEEPING_PERIOD, SWEEPING_PERIOD, TimeUnit.MILLISECONDS);
+    void scheduleFlush(TOUSocketImpl impl) {
+        if (impl.flushScheduled.getAndSet(true)) return;
+        Flusher flusher = flushers[shardOf(impl.getRemoteSocketAddress())];
+        flusher.queue.add(impl);
+        flusher.wakeUp();
     }
 
-    private void startFlusher() {
-        threadPoolExecutor.execute(() -> {
+    /**
+     * <p>
+     *     Flushes the impls scheduled to it in turn. An impl sends a segment per turn
+     *     and, if it still has data, is scheduled again behind the others, so a busy
+     *     connection can't keep the others from sending.
+     * </p>
+     *
+     * <p>
+     *     Runs on a thread of its own or on the loop of its shard. On a loop it flushes
+     *     only the impls that were scheduled when it started, so that the loop can receive
+     *     in between.
+     * </p>
+     */
+    private class Flusher implements Runnable {
+        private final LinkedBlockingQueue<TOUSocketImpl> queue = new LinkedBlockingQueue<>();
+        private final EventLoop loop; // null if the flusher has a thread
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        private Thread thread;
+
+        private Flusher(EventLoop loop) {
+            this.loop = loop;
+        }
+
+        private void wakeUp() {
+            if (loop != null && !drainScheduled.getAndSet(true)) {
+                loop.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void run() {
             try {
-                while (!Thread.interrupted()) {
-                    implsWithData.take().flushAndSendIfAvailable();
+                while (!shouldStop) {
+                    flush(queue.take());
                 }
             } catch (InterruptedException ignored) {}
-        });
+        }
+
+        private void drain() {
+            drainScheduled.set(false);
+            TOUSocketImpl impl;
+            try {
+                for (int n = queue.size(); n > 0 && (impl = queue.poll()) != null; --n) {
+                    flush(impl);
+                }
+            } catch (InterruptedException ignored) {}
+        }
+
+        private void flush(TOUSocketImpl impl)
+                throws InterruptedException {
+            // cleared first, so the impl can be scheduled again while it is flushed
+            impl.flushScheduled.set(false);
+            impl.flushAndSendIfAvailable();
+        }
+    }
+
+    /**
+     * Drives the {@link #timingWheel} that holds the retransmission timers of every impl in {@code impls}.
+     */
+    private void startTimingWheel() {
+        threadPoolExecutor.scheduleAtFixedRate(timingWheel::advance,
+                TIMING_WHEEL_TICK, TIMING_WHEEL_TICK, TimeUnit.MILLISECONDS);
     }
 
     boolean isClosed() {
-        return datagramSocket.isClosed();
+        return transport.isClosed();
     }
 
     void socketClosed(TOUSocketImpl impl) {
         InetSocketAddress associatedAddress = impl.isServerSocket() ?
                 impl.getLocalSocketAddress() :
                 impl.getRemoteSocketAddress();
-        synchronized (implMap) {
-            implMap.remove(associatedAddress);
+        impls.remove(associatedAddress);
+        if (connectedImpl == impl) {
+            connectedImpl = null;
         }
-        if (implMapIsEmpty()) {
+        if (impls.isEmpty()) {
             stop();
         }
     }
 
-    private boolean implMapIsEmpty() {
-        boolean implMapEmpty;
-        synchronized (implMap) {
-            implMapEmpty = implMap.isEmpty();
-        }
-        return implMapEmpty;
-    }
-
     private void stop() {
-        threadPoolExecutor.shutdown();
-        implsWithData.clear();
-        datagramSocket.close();
         shouldStop = true;
+        if (loop == null) {
+            threadPoolExecutor.shutdown();
+        }
+        for (Flusher flusher : flushers) {
+            if (flusher.thread != null) {
+                flusher.thread.interrupt();
+            }
+            flusher.queue.clear();
+        }
+        for (SegmentReceiver shard : shards) {
+            shard.transport.close();
+        }
     }
 
     public void registerImpl(InetSocketAddress associatedAddress, TOUSocketImpl impl) {
-        implMap.put(associatedAddress, impl);
+        impls.put(associatedAddress, impl);
+    }
+
+    /**
+     * Connects the transport to the {@code remote} address and registers the {@code impl},
+     * which is to be the only one of this communicator, for it.
+     */
+    void connect(InetSocketAddress remote, TOUSocketImpl impl)
+            throws IOException {
+        transport.connect(remote);
+        registerImpl(remote, impl);
+        connectedImpl = impl;
     }
 }
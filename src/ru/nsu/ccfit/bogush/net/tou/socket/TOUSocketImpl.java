@@ -1,30 +1,39 @@
 package ru.nsu.ccfit.bogush.net.tou.socket;
 
 import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment;
-import ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType;
 import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
 import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegmentFactory;
+import ru.nsu.ccfit.bogush.util.concurrent.HashedTimingWheel;
+import ru.nsu.ccfit.bogush.util.concurrent.VirtualThreads;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBefore;
+import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegment.seqBeforeOrEqual;
 import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType.*;
 
 /**
  * <p>
- *     A TCP over UDP socket implementation using only one {@link DatagramSocket} (aka UDP socket)
- *     and fixed amount of internal threads. The instances of this class have a shared communicator
+ *     A TCP over UDP socket implementation using only one UDP socket, a {@link DatagramSocket}
+ *     or a {@link java.nio.channels.DatagramChannel} (see {@link Transport}), and fixed amount
+ *     of internal threads. The instances of this class have a shared communicator
  *     that encapsulates sending and receiving of UDP packets. It with underlying UDP socket as
  *     its field is shared between implementations of one group.
  * </p>
@@ -45,32 +54,71 @@ import static ru.nsu.ccfit.bogush.net.tcp.segment.TCPSegmentType.*;
  * </p>
  */
 public class TOUSocketImpl extends SocketImpl {
-    private static final int SEGMENT_QUEUE_CAPACITY = 32;
-    private static final long DEFAULT_SEGMENT_TIMEOUT = 1000; // milliseconds
-    private static final HashMap<TCPSegmentType, Long> SEGMENT_TIMEOUT_MAP = new HashMap<>();
+    private static final long TIME_WAIT = 1000; // milliseconds a closed connection answers a resent FIN-ACK
     private static final int NUM_CORE_THREADS = 4;
-    private static final int RESENDING_PERIOD = 10; // milliseconds
-
-    static {
-        SEGMENT_TIMEOUT_MAP.put(SYN, Long.MAX_VALUE);
-    }
+    private static final long RETRANSMISSION_TIMEOUT = 30000; // milliseconds, resending gives up after that
+    private static final int DEFAULT_WINDOW_SIZE = 1<<16; // bytes
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+    private static final long DELAYED_ACK_TIMEOUT = 40; // milliseconds
+    private static final int DELAYED_ACK_SEGMENTS = 2; // at least every second segment is acknowledged at once
 
     private TOUSegmentFactory segmentFactory;
     TOUSharedCommunicator communicator;
     private InetSocketAddress local;
     private InetSocketAddress remote;
-    private final HashMap<TCPSegmentType, BlockingQueue<TOUSegment>> receivedSegmentsQueueMap = new HashMap<>();
-    private final ArrayBlockingQueue<Integer> ackQueue = new ArrayBlockingQueue<Integer>(SEGMENT_QUEUE_CAPACITY);
-    private final ConcurrentHashMap<Integer, ScheduledFuture<?>> sendDataFutureTasks = new ConcurrentHashMap<>();
+    /*
+     * Blocking waits use locks rather than monitors, which would pin a virtual thread to its carrier.
+     * Only readers wait for dataAvailable.
+     */
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private final Condition dataAvailable = receiveLock.newCondition();
+    private TOURetransmissionTimeout rto = new TOURetransmissionTimeout(); // an accepted impl takes over the handshake's
+    private final HashedTimingWheel.Timeout retransmissionTimer = new HashedTimingWheel.Timeout(this::retransmit);
+    private volatile TOUSegment handshakeSegment; // SYN, SYN-ACK, FIN or FIN-ACK resent until it is answered
+    private boolean recovering = false; // guarded by sendWindow
+    private int recoverSEQ; // sequence number sent last before the retransmission timeout, guarded by sendWindow
+    private int rexmitNxt; // holes before it have been retransmitted during the recovery, guarded by sendWindow
+    private int duplicateACKs = 0; // guarded by sendWindow
+    private final AtomicBoolean ackPending = new AtomicBoolean(false);
+    private final AtomicInteger delayedAckSegments = new AtomicInteger(0);
+    private final HashedTimingWheel.Timeout delayedAckTimer = new HashedTimingWheel.Timeout(this::delayedAckExpired);
+    private final HashedTimingWheel.Timeout timeWaitTimer = new HashedTimingWheel.Timeout(this::finishClose);
+    private TOUSendWindow sendWindow;
+    private volatile CongestionController congestion = new NewRenoCongestionController();
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int sendBufferSize = TOUOutputStream.DEFAULT_BUFFER_SIZE;
+    private String transportName = DatagramSocketTransport.NAME;
+    private boolean eventLoop = false;
+    private int receiveShards = 1;
+    private volatile boolean coalesce = false;
+    private boolean virtualThreads = false;
+    private boolean synCookies = false;
+    final AtomicBoolean flushScheduled = new AtomicBoolean(false); // set while the impl waits for its flusher
+    private TOUReceiveBuffer receiveBuffer; // guarded by receiveLock
+    private int advertisedWindow; // the latest window advertised to the peer, guarded by receiveLock
+    private int initialPeerWindow; // the window the peer has advertised in its SYN or SYN-ACK
     private int initialReadSEQ = 0;
     private int initialWriteSEQ = 0;
 
     private boolean isServerSocket = false;
     private boolean bound = false;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    private volatile CompletableFuture<Void> handshake; // completed by the communicator when the handshake ends
+    private volatile Runnable listener; // run by the communicator when data arrives, the input ends or the socket closes
+    private TOUAcceptQueue acceptQueue; // connections of a server socket waiting to be accepted
     private volatile boolean shutIn = false;
     private boolean shutOut = false;
 
+    public TOUSocketImpl() {
+    }
+
+    /**
+     * @param eventLoop the initial value of {@link TOUSocketOptions#TOU_EVENT_LOOP}
+     */
+    TOUSocketImpl(boolean eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
     @Override
     protected void create(boolean stream)
             throws IOException {
@@ -92,40 +140,90 @@ public class TOUSocketImpl extends SocketImpl {
     @Override
     protected void connect(InetAddress address, int port)
             throws IOException {
-        bind(new InetSocketAddress(0));
-        communicator.datagramSocket.connect(address, port);
-        remote = (InetSocketAddress) communicator.datagramSocket.getRemoteSocketAddress();
+        await(connectAsync(new InetSocketAddress(address, port)));
+    }
+
+    /**
+     * Starts the three-way handshake: SYN(x,?) -> SYNACK(y,x+1) -> ACK(x+1,y+1).
+     * The SYN is resent until the SYN-ACK arrives.
+     * @return a future the communicator completes on receiving the SYN-ACK, see {@link #synackReceived}
+     */
+    CompletableFuture<Void> connectAsync(InetSocketAddress address)
+            throws IOException {
+        bind(new InetSocketAddress(0), 1);
+        remote = address;
         segmentFactory = new TOUSegmentFactory(local, remote);
-        receivedSegmentsQueueMap.put(SYNACK, new ArrayBlockingQueue<>(1));
-        // three-way handshake: SYN(x,?) -> SYNACK(y,x+1) -> ACK(x+1,y+1)
+        communicator.connect(remote, this);
         TOUSegment syn = segmentFactory.create(SYN);
+        syn.setWindow(advertiseWindow());
+        CompletableFuture<Void> established = new CompletableFuture<>();
+        handshake = established;
+        sendRepeatedly(syn, RETRANSMISSION_TIMEOUT);
+        communicator.start();
+        return established;
+    }
+
+    /**
+     * Takes the SYN-ACK that answers our SYN, on the communicator's thread.
+     */
+    private void synackReceived(TOUSegment synack)
+            throws InterruptedException {
+        TOUSegment syn = handshakeSegment;
+        if (syn == null || !syn.isSYN() || synack.getACK() != syn.getSEQ() + 1) return;
+        stopResending();
+        sampleRTT(syn);
+        initialReadSEQ = synack.getSEQ() + 1;
+        initialWriteSEQ = syn.getSEQ() + 1;
+        initialPeerWindow = synack.getWindow();
+        establish();
+        scheduleAck();
+        connected = true;
+        completeHandshake(null);
+    }
+
+    /**
+     * Completes the future of the handshake in progress, exceptionally if {@code failure} isn't {@code null},
+     * then the socket is closed.
+     */
+    private void completeHandshake(IOException failure) {
+        CompletableFuture<Void> h = handshake;
+        handshake = null;
+        if (h == null) return;
+        if (failure == null) {
+            h.complete(null);
+        } else {
+            finishClose();
+            h.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Waits for a future the communicator completes, the blocking API waits for handshakes that way.
+     */
+    private static <T> T await(CompletableFuture<T> future)
+            throws IOException {
         try {
-            ScheduledFuture<?> future = sendRepeatedly(syn, DEFAULT_SEGMENT_TIMEOUT);
-            communicator.start();
-            int x = syn.getSEQ();
-            TOUSegment synack = fetch(SYNACK, s -> s.getACK() == x+1);
-            int y = synack.getSEQ();
-            future.cancel(true);
-            receivedSegmentsQueueMap.remove(SYNACK);
-            ackQueue.put(y+1);
-            initialReadSEQ = y+1;
-            initialWriteSEQ = x+1;
+            return future.get();
         } catch (InterruptedException e) {
-            throw new IOException(e);
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
         }
-
-        connected = true;
     }
 
     @Override
     protected void bind(InetAddress host, int port)
             throws IOException {
-        bind(new InetSocketAddress(host, port));
+        bind(new InetSocketAddress(host, port), receiveShards);
     }
 
-    private void bind(InetSocketAddress address)
-            throws SocketException {
-        communicator = new TOUSharedCommunicator(address, NUM_CORE_THREADS);
+    private void bind(InetSocketAddress address, int shards)
+            throws IOException {
+        communicator = eventLoop ?
+                new TOUSharedCommunicator(address, EventLoopGroup.shared(), shards) :
+                new TOUSharedCommunicator(address, NUM_CORE_THREADS, transportName, shards,
+                        virtualThreads ? VirtualThreads.factory() : Executors.defaultThreadFactory());
 //        if (communicator.localSocketAddress.getAddress().isAnyLocalAddress()) {
 //            try {
 //                communicator.localSocketAddress = new InetSocketAddress(InetAddress.getLocalHost(),
@@ -143,7 +241,9 @@ public class TOUSocketImpl extends SocketImpl {
     protected void listen(int backlog)
             throws IOException {
         isServerSocket = true;
-        receivedSegmentsQueueMap.put(SYN, new ArrayBlockingQueue<>(backlog));
+        segmentFactory = new TOUSegmentFactory(local, null);
+        acceptQueue = new TOUAcceptQueue(communicator, segmentFactory, backlog, RETRANSMISSION_TIMEOUT, synCookies,
+                this::adopt);
         communicator.registerImpl(local, this);
         communicator.start();
     }
@@ -152,29 +252,54 @@ public class TOUSocketImpl extends SocketImpl {
     protected void accept(SocketImpl si)
             throws IOException {
         if (!isServerSocket) throw new IllegalArgumentException("Not server socket");
-        TOUSocketImpl impl = (TOUSocketImpl) si;
-        // three-way handshake: SYN(x,?) -> SYNACK(y,x+1) -> ACK(x+1,y+1)
         try {
-            TOUSegment syn = receivedSegmentsQueueMap.get(SYN).take();
-            int x = syn.getSEQ();
-            receivedSegmentsQueueMap.put(ORDINARY, new ArrayBlockingQueue<>(SEGMENT_QUEUE_CAPACITY));
-            receivedSegmentsQueueMap.put(ACK, new ArrayBlockingQueue<>(SEGMENT_QUEUE_CAPACITY));
-            TOUSegment synack = segmentFactory.create(SYNACK, syn);
-            int y = synack.getSEQ();
-            ScheduledFuture<?> future = sendRepeatedly(synack, DEFAULT_SEGMENT_TIMEOUT);
-            impl.local = local;
-            impl.bound = true;
-            impl.remote = syn.getSrc();
-            impl.communicator = communicator;
-            communicator.registerImpl(impl.remote, impl);
-            impl.fetch(ACK, s -> s.getSEQ() == x+1 && s.getACK() == y+1);
-            initialReadSEQ = x+1;
-            initialWriteSEQ = y+1;
-            future.cancel(true);
-            impl.connected = true;
+            acceptQueue.accept((TOUSocketImpl) si);
         } catch (InterruptedException ignored) {}
     }
 
+    /**
+     * Starts accepting a connection without blocking.
+     * @return a future completed, on the communicator's thread if no connection is established yet,
+     *     with a new impl serving the connection
+     */
+    CompletableFuture<TOUSocketImpl> acceptAsync() {
+        if (!isServerSocket) throw new IllegalArgumentException("Not server socket");
+        return acceptQueue.acceptAsync();
+    }
+
+    /**
+     * Configures the accepted {@code impl}, which takes over the options of this server socket,
+     * for an established connection.
+     */
+    private void adopt(TOUSocketImpl impl, TOUAcceptQueue.Connection connection)
+            throws IOException {
+        impl.local = local;
+        impl.bound = true;
+        impl.remote = connection.remote;
+        impl.communicator = communicator;
+        impl.segmentFactory = new TOUSegmentFactory(local, impl.remote);
+        impl.windowSize = windowSize;
+        impl.sendBufferSize = sendBufferSize;
+        impl.transportName = transportName;
+        impl.eventLoop = eventLoop;
+        impl.receiveShards = receiveShards;
+        impl.coalesce = coalesce;
+        impl.virtualThreads = virtualThreads;
+        impl.congestion = CongestionController.forName(congestion.getName());
+        impl.rto = connection.rto;
+        impl.initialReadSEQ = connection.initialReadSEQ;
+        impl.initialWriteSEQ = connection.initialWriteSEQ;
+        impl.initialPeerWindow = connection.peerWindow;
+        impl.establish();
+        impl.advertiseWindow();
+        impl.connected = true;
+        try {
+            connection.handOver(impl);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
     private TOUInputStream in;
 
     @Override
@@ -194,11 +319,18 @@ public class TOUSocketImpl extends SocketImpl {
         shutIn = true;
         if (in != null) {
             in.setEof(true);
-            // wake up threads waiting on read
-            synchronized (receivedSegmentsQueueMap) {
-                receivedSegmentsQueueMap.notifyAll();
+        }
+        receiveLock.lock();
+        try {
+            if (receiveBuffer != null) {
+                receiveBuffer.clear();
             }
+            // wake up threads waiting on read
+            dataAvailable.signalAll();
+        } finally {
+            receiveLock.unlock();
         }
+        notifyListener();
     }
 
     boolean isInShut() {
@@ -213,7 +345,7 @@ public class TOUSocketImpl extends SocketImpl {
         if (!connected) throw new IOException("Socket not connected");
         if (isClosedOrPending()) throw new IOException("Socket closed");
         if (out == null) {
-            out = new TOUOutputStream(this);
+            out = new TOUOutputStream(this, sendBufferSize);
         }
         return out;
     }
@@ -243,79 +375,220 @@ public class TOUSocketImpl extends SocketImpl {
         return closePending.get() || isClosed();
     }
 
+    /**
+     * Blocks until the close is finished, see {@link #closeAsync()}.
+     */
     @Override
     protected void close()
             throws IOException {
-        if (closePending.getAndSet(true) || isClosed()) return;
-        // wait until all segments are sent
-        // and perform three-way handshake FIN->FINACK->ACK
+        await(closeAsync());
+    }
+
+    /**
+     * Starts closing the socket without blocking. A connection is closed with the three-way
+     * handshake FIN->FINACK->ACK once all the data written is acknowledged.
+     * @return a future completed, on the communicator's thread, when the close is finished,
+     *     at once if the socket is closed or being closed already
+     */
+    CompletableFuture<Void> closeAsync()
+            throws IOException {
+        if (closePending.getAndSet(true) || isClosed()) return CompletableFuture.completedFuture(null);
+        if (isServerSocket) {
+            finishClose();
+            if (acceptQueue != null) {
+                acceptQueue.close();
+            }
+            return closed;
+        }
         shutdownOutput();
         shutdownInput();
+        return closed;
     }
 
+    private volatile boolean closingActively = false;
+    private final AtomicBoolean finSent = new AtomicBoolean(false);
+    private TOUSegment finackAck; // the reply to the peer's FIN-ACK, resent as is if the FIN-ACK is retransmitted
+
+    /**
+     * Starts the three-way handshake FIN(x,?) -> FINACK(y,x+1) -> ACK(x+1,y+1). Nothing waits
+     * for it: the FIN is sent by the acknowledgement that leaves no data unacknowledged,
+     * resent by the retransmission timer and answered in {@link #finackReceived}.
+     */
     private void activeClose()
             throws IOException {
-        // three-way handshake: FIN(x,?) -> FINACK(y,x+1) -> ACK(x+1,y+1)
-        try {
-            TOUSegment fin = segmentFactory.create(FIN);
-            ScheduledFuture<?> future = sendRepeatedly(fin, DEFAULT_SEGMENT_TIMEOUT);
-            int x = fin.getSEQ();
-            TOUSegment finack = fetch(FINACK, s -> s.getACK() == x+1);
-            future.cancel(true);
-            TOUSegment ack = segmentFactory.create(ACK, finack);
-            communicator.sendOnce(ack);
-            Thread.sleep(DEFAULT_SEGMENT_TIMEOUT);
+        if (sendWindow == null) {
+            // the handshake isn't complete, there is no connection to close
+            completeHandshake(new SocketException("Socket closed"));
             finishClose();
-        } catch (InterruptedException ignored) {}
+            return;
+        }
+        closingActively = true;
+        sendFinIfAllDataIsAcknowledged();
+    }
+
+    /**
+     * Sends the FIN once, when the output stream is empty and the peer has acknowledged
+     * every byte flushed from it. Holds the window's lock, so that an acknowledgement
+     * handled meanwhile can't cancel the retransmission timer the FIN has armed.
+     */
+    private void sendFinIfAllDataIsAcknowledged()
+            throws IOException {
+        if (!closingActively) return;
+        synchronized (sendWindow) {
+            boolean acknowledged = out == null ?
+                    sendWindow.isEmpty() :
+                    out.available() == 0 && sendWindow.getUnacknowledgedSEQ() == out.getCurrentSEQ();
+            if (!acknowledged || finSent.getAndSet(true)) return;
+            sendRepeatedly(segmentFactory.create(FIN), RETRANSMISSION_TIMEOUT);
+        }
     }
 
-    private boolean closingPassively = false;
+    /**
+     * Takes the FIN-ACK that answers our FIN, on the communicator's thread: acknowledges it
+     * and finishes the close after {@link #TIME_WAIT}. Until then a resent FIN-ACK, which means
+     * that the ACK has been lost, is answered with the ACK again.
+     */
+    private void finackReceived(TOUSegment finack) {
+        TOUSegment ack = finackAck;
+        if (ack == null) {
+            TOUSegment fin = handshakeSegment;
+            if (fin == null || !fin.isFIN() || finack.getACK() != fin.getSEQ() + 1) return;
+            stopResending();
+            ack = segmentFactory.create(ACK, finack);
+            ack.setWindow(advertiseWindow());
+            finackAck = ack;
+            communicator.timingWheel.arm(timeWaitTimer, TIME_WAIT, MILLISECONDS);
+        }
+        communicator.sendOnce(ack);
+    }
+
+    private volatile boolean closingPassively = false;
+    private volatile boolean finReceived = false;
+    private volatile boolean finackAcknowledged = false;
+    private final AtomicBoolean closeFinished = new AtomicBoolean(false);
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile String abortReason; // why the connection has been aborted, null unless it has
+    private TOUSegment finack; // the reply to the peer's FIN, resent as is if the FIN is retransmitted
+
+    /**
+     * Doesn't block: it runs on the receiver thread or on an event loop shared with other connections.
+     * The FIN-ACK is resent by the retransmission timer until the peer acknowledges it,
+     * the close finishes if it times out. The input is shut down once the data received
+     * before the FIN has been read.
+     */
     private void passiveClose(TOUSegment fin)
             throws IOException {
+        finReceived = true;
         boolean wasClosePending = closePending.getAndSet(true);
-        closePending.set(true);
 
-        // second step in three-way handshake: FIN(x,?) -> FIN-ACK(y,x+1) -> ACK(x+1,y+1)
-        TOUSegment finack = segmentFactory.create(FINACK, fin);
+        if (finack != null) {
+            // the peer resends its FIN, so the FIN-ACK has been lost
+            communicator.sendOnce(finack);
+            return;
+        }
 
-        communicator.sendOnce(finack);
+        // second step in three-way handshake: FIN(x,?) -> FIN-ACK(y,x+1) -> ACK(x+1,y+1)
+        finack = segmentFactory.create(FINACK, fin);
 
-        if (wasClosePending) return;
+        if (wasClosePending) {
+            // both sides are closing, the retransmission timer resends our FIN
+            communicator.sendOnce(finack);
+            return;
+        }
 
         closingPassively = true;
 
+        sendRepeatedly(finack, RETRANSMISSION_TIMEOUT);
+
         shutdownOutput();
 
-        // wait until all data segments are read from queue
-        waitUntilReceivedSegmentsQueueIsEmpty(ORDINARY);
+        shutdownInputIfAllDataIsRead();
+    }
 
+    /**
+     * Finishes the passive close if all received data is read and the peer has acknowledged the FIN-ACK.
+     */
+    private void shutdownInputIfAllDataIsRead()
+            throws IOException {
+        receiveLock.lock();
+        try {
+            if (receiveBuffer != null && receiveBuffer.available() > 0) return;
+        } finally {
+            receiveLock.unlock();
+        }
         shutdownInput();
-        receivedSegmentsQueueMap.remove(ORDINARY);
+        if (finackAcknowledged) {
+            finishClose();
+        }
     }
 
     private void finishClose() {
+        if (closeFinished.getAndSet(true)) return;
+        communicator.timingWheel.cancel(retransmissionTimer);
+        communicator.timingWheel.cancel(delayedAckTimer);
+        communicator.timingWheel.cancel(timeWaitTimer);
         bound = false;
         connected = false;
         // close finished
         // notify shared communicator about it so it could terminate
         communicator.socketClosed(this);
+        notifyListener();
+        closed.complete(null);
     }
 
-    private void waitUntilReceivedSegmentsQueueIsEmpty(TCPSegmentType type) {
-        BlockingQueue<TOUSegment> queue = receivedSegmentsQueueMap.get(type);
-        synchronized (receivedSegmentsQueueMap) {
-            while (!queue.isEmpty()) {
-                try {
-                    receivedSegmentsQueueMap.wait();
-                } catch (InterruptedException ignored) {}
-            }
+    /**
+     * Drops the connection without the close handshake, on the communicator's thread: fails
+     * the handshake in progress, finishes the close and wakes the blocked readers and writers,
+     * which then throw.
+     */
+    private void abort(String reason) {
+        if (abortReason != null) return;
+        abortReason = reason;
+        closePending.set(true);
+        completeHandshake(new SocketException(reason));
+        receiveLock.lock();
+        try {
+            dataAvailable.signalAll();
+        } finally {
+            receiveLock.unlock();
+        }
+        TOUOutputStream o = out;
+        if (o != null) {
+            o.wakeWriters();
         }
+        finishClose();
+    }
+
+    /**
+     * @throws SocketException if the connection has been aborted
+     */
+    void checkAborted()
+            throws SocketException {
+        String reason = abortReason;
+        if (reason != null) throw new SocketException(reason);
     }
 
+    /**
+     * @return the number of bytes that can be read without blocking: the received
+     *     in-order bytes and the rest of the data fetched by the input stream
+     */
     @Override
     protected int available()
             throws IOException {
-        return 0;
+        if (isClosed()) throw new IOException("Socket closed");
+        return in == null ? bufferedData() : in.available();
+    }
+
+    /**
+     * @return the number of bytes received in order but not fetched yet
+     */
+    int bufferedData() {
+        receiveLock.lock();
+        try {
+            return receiveBuffer == null || shutIn ? 0 : receiveBuffer.available();
+        } finally {
+            receiveLock.unlock();
+        }
     }
 
     @Override
@@ -327,183 +600,674 @@ public class TOUSocketImpl extends SocketImpl {
     @Override
     public void setOption(int optID, Object value)
             throws SocketException {
-
+        switch (optID) {
+            case TOUSocketOptions.TOU_WINDOW_SIZE:
+                int size = (Integer) value;
+                if (size <= 0) throw new SocketException("Window size must be positive: " + size);
+                windowSize = size;
+                if (sendWindow != null) {
+                    sendWindow.setSize(size);
+                }
+                receiveLock.lock();
+                try {
+                    if (receiveBuffer != null) {
+                        receiveBuffer.setCapacity(receiveBufferCapacity());
+                    }
+                } finally {
+                    receiveLock.unlock();
+                }
+                break;
+            case SO_SNDBUF:
+                int bufferSize = (Integer) value;
+                if (bufferSize <= 0) throw new SocketException("Send buffer size must be positive: " + bufferSize);
+                sendBufferSize = bufferSize;
+                if (out != null) {
+                    out.setBufferSize(bufferSize);
+                }
+                break;
+            case TOUSocketOptions.TOU_CONGESTION_CONTROL:
+                congestion = CongestionController.forName((String) value);
+                break;
+            case TOUSocketOptions.TOU_TRANSPORT:
+                if (bound) throw new SocketException("Socket already bound");
+                transportName = (String) value;
+                break;
+            case TOUSocketOptions.TOU_EVENT_LOOP:
+                if (bound) throw new SocketException("Socket already bound");
+                eventLoop = (Boolean) value;
+                break;
+            case TOUSocketOptions.TOU_RECEIVE_SHARDS:
+                if (bound) throw new SocketException("Socket already bound");
+                int shards = (Integer) value;
+                if (shards <= 0) throw new SocketException("Number of receive shards must be positive: " + shards);
+                receiveShards = shards;
+                break;
+            case TOUSocketOptions.TOU_COALESCE:
+                coalesce = (Boolean) value;
+                break;
+            case TOUSocketOptions.TOU_VIRTUAL_THREADS:
+                if (bound) throw new SocketException("Socket already bound");
+                boolean virtual = (Boolean) value;
+                if (virtual && !VirtualThreads.isSupported()) throw new SocketException("Virtual threads are not supported");
+                virtualThreads = virtual;
+                break;
+            case TOUSocketOptions.TOU_SYN_COOKIES:
+                if (isServerSocket) throw new SocketException("Socket already listening");
+                synCookies = (Boolean) value;
+                break;
+            case TOUSocketOptions.TOU_CONGESTION_WINDOW:
+            case TOUSocketOptions.TOU_SLOW_START_THRESHOLD:
+                throw new SocketException("Read-only option: " + optID);
+        }
     }
 
     @Override
     public Object getOption(int optID)
             throws SocketException {
+        switch (optID) {
+            case TOUSocketOptions.TOU_WINDOW_SIZE:
+                return windowSize;
+            case SO_SNDBUF:
+                return sendBufferSize;
+            case TOUSocketOptions.TOU_CONGESTION_CONTROL:
+                return congestion.getName();
+            case TOUSocketOptions.TOU_CONGESTION_WINDOW:
+                return congestion.getWindow();
+            case TOUSocketOptions.TOU_SLOW_START_THRESHOLD:
+                return congestion.getSlowStartThreshold();
+            case TOUSocketOptions.TOU_TRANSPORT:
+                return communicator == null ? transportName : communicator.transport.getName();
+            case TOUSocketOptions.TOU_EVENT_LOOP:
+                return eventLoop;
+            case TOUSocketOptions.TOU_RECEIVE_SHARDS:
+                return receiveShards;
+            case TOUSocketOptions.TOU_COALESCE:
+                return coalesce;
+            case TOUSocketOptions.TOU_VIRTUAL_THREADS:
+                return virtualThreads;
+            case TOUSocketOptions.TOU_SYN_COOKIES:
+                return synCookies;
+        }
         return null;
     }
 
     void handle(TOUSegment segment)
             throws InterruptedException, IOException {
+        if (isServerSocket) {
+            acceptQueue.handle(segment, receiveWindow());
+            return;
+        }
+
         if (segment.dataSize() > 0) {
-            if (!shutIn) {
-                putInQueue(ORDINARY, segment);
-                ackQueue.put(segment.getSEQ());
+            if (receiveData(segment)) {
+                delayAck();
             } else {
-                communicator.sendOnce(segmentFactory.create(ACK, segment.getSEQ()));
+                scheduleAck();
             }
+            notifyListener();
         }
 
         if (segment.isACK()) {
             if (segment.isSYN()) {
-                putInQueue(SYNACK, segment);
+                if (connected) {
+                    // our ACK completing the handshake was lost
+                    scheduleAck();
+                } else {
+                    synackReceived(segment);
+                }
             } else if (segment.isFIN()) {
-                putInQueue(FINACK, segment);
+                finackReceived(segment);
             } else {
-                if (closingPassively && shutIn) {
-                    finishClose();
-                } else {
-                    ScheduledFuture<?> future = sendDataFutureTasks.remove(segment.getACK());
-                    if (future != null) {
-                        future.cancel(true);
-                    } else {
-                        putInQueue(ACK, segment);
+                if (closingPassively && segment.getACK() == finack.getSEQ() + 1) {
+                    // the last step of the passive close, the close finishes when all data is read
+                    if (handshakeSegment == finack) {
+                        stopResending();
+                    }
+                    finackAcknowledged = true;
+                    if (shutIn) {
+                        finishClose();
                     }
+                } else if (connected) {
+                    acknowledge(segment);
                 }
             }
         } else {
-            if (segment.isSYN()) {
-                putInQueue(SYN, segment);
-            } else if (segment.isFIN()) {
+            if (segment.isFIN()) {
                 passiveClose(segment);
             } // else it's just a data segment that's already been handled before.
         }
     }
 
-    private ScheduledFuture<?> sendRepeatedly(TOUSegment s, long timeout)
-            throws InterruptedException {
-        return communicator.sendRepeatedly(s.setTimeout(timeout), RESENDING_PERIOD, MILLISECONDS);
+    /**
+     * Called once the three-way handshake has chosen the initial sequence numbers.
+     */
+    private void establish() {
+        receiveLock.lock();
+        try {
+            receiveBuffer = new TOUReceiveBuffer(initialReadSEQ, receiveBufferCapacity());
+        } finally {
+            receiveLock.unlock();
+        }
+        sendWindow = new TOUSendWindow(initialWriteSEQ, windowSize, initialReadSEQ - 1, initialPeerWindow);
+    }
+
+    /**
+     * The receive buffer holds a whole window and always has room for a segment,
+     * so a segment sent into a closed window to probe it can be accepted.
+     */
+    private int receiveBufferCapacity() {
+        return Math.max(windowSize, TOUOutputStream.MAX_SEGMENT_SIZE);
     }
 
-    void sweepTimedOutSegmentsFromQueues() {
-        for (BlockingQueue<TOUSegment> queue : receivedSegmentsQueueMap.values()) {
-            queue.removeIf(TOUSegment::timedOut);
+    /**
+     * Buffers a data segment in the {@link TOUReceiveBuffer}, which advances the next expected
+     * sequence number over every byte that has become contiguous. Segments that are already
+     * received are dropped, they will be acknowledged again.
+     * @return {@code true} if the segment has arrived in order and there is no gap in the received data,
+     *     so its acknowledgement may be delayed
+     */
+    private boolean receiveData(TOUSegment segment) {
+        receiveLock.lock();
+        try {
+            if (receiveBuffer == null) {
+                return false;
+            }
+            if (shutIn) {
+                // nobody is going to read the data, so just acknowledge it
+                receiveBuffer.skip(segment);
+                return false;
+            }
+            if (!receiveBuffer.receive(segment)) {
+                return false;
+            }
+            // a reader takes all the data there is, waking the others would be in vain
+            dataAvailable.signal();
+            return receiveBuffer.getNextSEQ() == segment.getEndSEQ() && !receiveBuffer.hasOutOfOrderData();
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    private int[] getSACKBlocks() {
+        receiveLock.lock();
+        try {
+            return receiveBuffer == null ? new int[0] : receiveBuffer.getSACKBlocks(TCPSegment.MAX_SACK_BLOCKS);
+        } finally {
+            receiveLock.unlock();
         }
     }
 
-    private void putInQueue(TCPSegmentType type, TOUSegment segment)
+    /**
+     * Processes a cumulative acknowledgement: samples the round-trip time of the latest
+     * acknowledged segment, restarts the retransmission timer for the remaining ones,
+     * lets congestion control enlarge its window and the flusher send more data if the window
+     * has slid or the peer has opened its receive window.
+     * <p>
+     * A recovery starts after a retransmission timeout or, without waiting for the timer,
+     * after {@value #DUPLICATE_ACK_THRESHOLD} duplicate acknowledgements (fast retransmit):
+     * the peer keeps receiving segments but not the one it is waiting for.
+     * During the recovery every acknowledgement that doesn't cover all the data sent before
+     * it started retransmits the holes it reveals at once: the next unacknowledged
+     * segment and the segments the peer hasn't selectively acknowledged although it has received
+     * data after them. Each hole is retransmitted once per recovery, segments that have reached
+     * the peer are never resent.
+     * <p>
+     * Only an acknowledgement that carries no data and doesn't update the peer's window
+     * can be a duplicate one.
+     */
+    private void acknowledge(TOUSegment segment)
             throws InterruptedException {
-        BlockingQueue<TOUSegment> queue = receivedSegmentsQueueMap.get(type);
-        if (queue == null) {
-            return;
+        if (sendWindow == null) return;
+        int ack = segment.getACK();
+        boolean windowUpdate = sendWindow.updatePeerWindow(segment.getSEQ(), ack, segment.getWindow());
+        boolean pure = segment.dataSize() == 0 && !windowUpdate;
+        sendWindow.sack(segment.getSACKBlocks());
+        TOUSegment[] latest = new TOUSegment[1];
+        int acknowledged = sendWindow.acknowledge(ack, s -> latest[0] = s);
+        boolean slid = acknowledged > 0;
+        if (slid) {
+            if (latest[0] != null) {
+                sampleRTT(latest[0]);
+            }
+            rto.resetBackoff();
         }
-        synchronized (receivedSegmentsQueueMap) {
-            if (queue.contains(segment)) {
-                return;
+        if ((slid || windowUpdate) && out != null && out.available() > 0) {
+            communicator.scheduleFlush(this);
+        }
+        List<TOUSegment> lost = Collections.emptyList();
+        // the window's lock keeps the flusher from adding a segment between the check and the cancel
+        synchronized (sendWindow) {
+            if (slid) {
+                duplicateACKs = 0;
+            } else if (!recovering) {
+                boolean duplicate = pure && !sendWindow.isEmpty() && ack == sendWindow.getUnacknowledgedSEQ();
+                if (!duplicate || ++duplicateACKs < DUPLICATE_ACK_THRESHOLD) return;
+                congestion.onLoss(sendWindow.bytesInFlight());
+                startRecovery();
+            }
+            if (recovering) {
+                if (seqBefore(ack, recoverSEQ)) {
+                    lost = lostSegments();
+                } else {
+                    recovering = false;
+                    congestion.onRecoveryEnd();
+                }
+            }
+            if (slid) {
+                congestion.onAcknowledged(acknowledged);
+            }
+            if (slid && handshakeSegment == null) {
+                if (sendWindow.isEmpty()) {
+                    communicator.timingWheel.cancel(retransmissionTimer);
+                } else {
+                    communicator.timingWheel.arm(retransmissionTimer, rto.get(), NANOSECONDS);
+                }
+            }
+        }
+        if (!lost.isEmpty()) {
+            try {
+                transmit(lost);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (slid) {
+            try {
+                sendFinIfAllDataIsAcknowledged();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            segment.setTimeout(SEGMENT_TIMEOUT_MAP.getOrDefault(type, (long) 0));
-            queue.put(segment);
-            receivedSegmentsQueueMap.notifyAll();
         }
     }
 
-    private TOUSegment tryFetch(BlockingQueue<TOUSegment> queue, Predicate<TOUSegment> predicate) {
-        Iterator<TOUSegment> iterator = queue.iterator();
-        while (iterator.hasNext()) {
-            TOUSegment segment = iterator.next();
-            if (predicate.test(segment)) {
-                iterator.remove();
-                return segment;
-            }
+    /**
+     * Must be called holding the lock of {@code sendWindow}. Every segment sent so far
+     * has to be acknowledged to finish the recovery, none has been retransmitted yet.
+     */
+    private void startRecovery() {
+        recovering = true;
+        recoverSEQ = sendWindow.getNextSEQ();
+        rexmitNxt = sendWindow.getUnacknowledgedSEQ();
+        duplicateACKs = 0;
+    }
+
+    /**
+     * Must be called holding the lock of {@code sendWindow} during a recovery.
+     * @return the segments that are known to be lost and haven't been retransmitted in this recovery yet
+     */
+    private List<TOUSegment> lostSegments() {
+        TOUSegment oldest = sendWindow.oldest();
+        if (oldest == null) {
+            return Collections.emptyList();
         }
-        return null;
+        int from = seqBefore(rexmitNxt, oldest.getSEQ()) ? oldest.getSEQ() : rexmitNxt;
+        List<TOUSegment> lost = sendWindow.holes(from);
+        if (from == oldest.getSEQ() && !oldest.isSACKed() && (lost.isEmpty() || lost.get(0) != oldest)) {
+            // the peer hasn't selectively acknowledged anything, the partial acknowledgement is the only hint
+            lost.add(0, oldest);
+        }
+        if (!lost.isEmpty()) {
+            rexmitNxt = lost.get(lost.size() - 1).getEndSEQ();
+        }
+        return lost;
     }
 
+    private void sampleRTT(TOUSegment acknowledged) {
+        if (acknowledged.isSent() && !acknowledged.isRetransmitted()) {
+            rto.sample(acknowledged.getSendTime());
+            congestion.onRTTSample(System.nanoTime() - acknowledged.getSendTime());
+        }
+    }
 
-    private TOUSegment tryFetch(TCPSegmentType type, Predicate<TOUSegment> predicate) {
-        return tryFetch(receivedSegmentsQueueMap.get(type), predicate);
+    /**
+     * Marks that the peer should be told the next expected sequence number. The acknowledgement
+     * is piggybacked on the next data segment or sent on its own by the flusher.
+     */
+    private void scheduleAck()
+            throws InterruptedException {
+        if (!ackPending.getAndSet(true)) {
+            communicator.scheduleFlush(this);
+        }
     }
 
     /**
-     * Blocks until there is a segment in the {@code queue} that satisfies the {@code predicate}.
-     * Different threads may block performing a fetch:<br>
-     * <li>User thread
-     *  <ul>
-     *      <li>waiting for SYN-ACK segment in connect()</li>
-     *      <li>waiting for FIN-ACK segment in close()</li>
-     *      <li>requesting subsequent data in read()</li>
-     *  </ul>
-     * </li>
-     *
-     * <li>A TOU internal thread
-     *  <ul>
-     *      <li>handling a received FIN segment</li>
-     *  </ul>
-     * </li>
-     * @return the first segment in the queue that satisfies the {@code predicate} or {@code null} if ...
-     *     The order is specified in {@link ArrayBlockingQueue#iterator}
+     * Delays the acknowledgement of a segment received in order (RFC 1122, RFC 5681) in hope
+     * that it can be piggybacked on data or cover more segments. Every second segment is still
+     * acknowledged at once, so the peer's ACK clock keeps ticking, and no acknowledgement is
+     * delayed longer than {@link #DELAYED_ACK_TIMEOUT}.
      */
-    private TOUSegment fetch(BlockingQueue<TOUSegment> queue, Predicate<TOUSegment> predicate)
+    private void delayAck()
             throws InterruptedException {
-        queue.iterator();
-        TOUSegment fetched = null;
-        while (fetched == null) {
-            fetched = tryFetch(queue, predicate);
-            synchronized (receivedSegmentsQueueMap) {
-                if (fetched == null) {
-                    receivedSegmentsQueueMap.wait();
-                } else {
-                    receivedSegmentsQueueMap.notifyAll();
-                }
+        if (delayedAckSegments.incrementAndGet() >= DELAYED_ACK_SEGMENTS) {
+            scheduleAck();
+        } else {
+            communicator.timingWheel.armIfDisarmed(delayedAckTimer, DELAYED_ACK_TIMEOUT, MILLISECONDS);
+        }
+    }
+
+    private void delayedAckExpired() {
+        try {
+            scheduleAck();
+        } catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * Called when an acknowledgement of everything received so far is about to be sent.
+     */
+    private void ackSent() {
+        ackPending.set(false);
+        delayedAckSegments.set(0);
+        communicator.timingWheel.cancel(delayedAckTimer);
+    }
+
+    /**
+     * The receive window is the free space of the receive buffer: the window size minus
+     * the bytes received in order but not read yet. When the input is shut down
+     * received data is discarded, so the whole window is free.
+     */
+    private int receiveWindow() {
+        receiveLock.lock();
+        try {
+            if (receiveBuffer == null) {
+                return windowSize;
             }
+            return Math.max(windowSize - receiveBuffer.available(), 0);
+        } finally {
+            receiveLock.unlock();
         }
-        return fetched;
     }
 
-    private TOUSegment fetch(TCPSegmentType type, Predicate<TOUSegment> predicate)
-            throws InterruptedException {
-        BlockingQueue<TOUSegment> queue = receivedSegmentsQueueMap.get(type);
-        return fetch(queue, predicate);
+    private int advertiseWindow() {
+        receiveLock.lock();
+        try {
+            advertisedWindow = receiveWindow();
+            return advertisedWindow;
+        } finally {
+            receiveLock.unlock();
+        }
     }
 
-    byte[] fetchData(int seq)
-            throws InterruptedException, IOException {
-        if (isClosedOrPending()) throw new IOException("Socket closed");
-        TOUSegment fetched;
+    private int getReceiveNextSEQ() {
+        receiveLock.lock();
+        try {
+            return receiveBuffer.getNextSEQ();
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a segment of a handshake and resends it every retransmission timeout
+     * until {@link #stopResending()} is called or the segment times out.
+     */
+    private void sendRepeatedly(TOUSegment s, long timeout)
+            throws IOException {
+        handshakeSegment = s.setTimeout(timeout);
+        transmit(s);
+        communicator.timingWheel.arm(retransmissionTimer, rto.get(), NANOSECONDS);
+    }
 
-        while (true) {
-            fetched = tryFetch(ORDINARY, s -> s.getSEQ() == seq);
+    private void stopResending() {
+        handshakeSegment = null;
+        communicator.timingWheel.cancel(retransmissionTimer);
+    }
 
-            if (fetched != null) {
-                break;
+    private void transmit(TOUSegment s)
+            throws IOException {
+        s.markSent();
+        if (s.isRetransmitted()) {
+            rto.retransmitted();
+        }
+        communicator.send(s);
+    }
+
+    /**
+     * Transmits the segments one by one or, if {@link TOUSocketOptions#TOU_COALESCE} is set,
+     * bundled into as few datagrams as they fit in.
+     */
+    private void transmit(List<TOUSegment> segments)
+            throws IOException {
+        if (!coalesce) {
+            for (TOUSegment s : segments) {
+                transmit(s);
             }
+            return;
+        }
+        for (TOUSegment s : segments) {
+            s.markSent();
+            if (s.isRetransmitted()) {
+                rto.retransmitted();
+            }
+        }
+        communicator.send(segments);
+    }
 
-            if (shutIn) {
-                return null;
+    /**
+     * Runs when the retransmission timer expires: resends the pending handshake segment or,
+     * if there is none, the oldest unacknowledged data segment and backs the timeout off.
+     * Like in TCP there is one timer per connection, restarted whenever an acknowledgement
+     * slides the window. A data segment still unacknowledged after {@link #RETRANSMISSION_TIMEOUT}
+     * aborts the connection.
+     */
+    private void retransmit() {
+        TOUSegment segment = handshakeSegment;
+        if (segment == null && sendWindow != null) {
+            synchronized (sendWindow) {
+                segment = sendWindow.oldest();
+                // only the first timeout of a loss episode shrinks the window (RFC 5681, section 3.1)
+                if (segment != null && !rto.isBackedOff()) {
+                    congestion.onRetransmissionTimeout(sendWindow.bytesInFlight());
+                }
+                startRecovery();
+                if (segment != null) {
+                    rexmitNxt = segment.getEndSEQ();
+                }
+            }
+        }
+        if (segment == null) {
+            return;
+        }
+        if (segment.timedOut()) {
+            if (segment != handshakeSegment) {
+                // the peer hasn't acknowledged the data for RETRANSMISSION_TIMEOUT
+                abort("Connection timed out");
+            } else if (segment.isFIN()) {
+                // a FIN or FIN-ACK: the peer has gone, there is nobody to finish the close with
+                finishClose();
+            } else {
+                completeHandshake(new SocketTimeoutException("Handshake timed out"));
+            }
+            return;
+        }
+        rto.backoff();
+        try {
+            transmit(segment);
+        } catch (IOException e) {
+            if (communicator.isClosed()) {
+                abort("Socket closed");
+                return;
+            }
+            // the send has failed for now, the segment is resent on the next timeout until its deadline
+        }
+        communicator.timingWheel.arm(retransmissionTimer, rto.get(), NANOSECONDS);
+    }
+
+    /**
+     * Takes all the data received in order and not read yet, if {@code block} is set waits until there is some.
+     * The data received before the peer has closed the connection can still be read.
+     * @return the data or {@code null} if the input is shut down
+     *     or nothing has been received yet and {@code block} isn't set
+     */
+    byte[] fetchData(boolean block)
+            throws InterruptedException, IOException {
+        if (isClosed() || closePending.get() && !finReceived) throw new IOException("Socket closed");
+        byte[] fetched;
+
+        receiveLock.lock();
+        try {
+            while (true) {
+                checkAborted();
+                fetched = receiveBuffer.take(Integer.MAX_VALUE);
+
+                if (fetched != null) {
+                    break;
+                }
+
+                if (shutIn || !block) {
+                    return null;
+                }
+
+                dataAvailable.await();
             }
+        } finally {
+            receiveLock.unlock();
+        }
+
+        if (closingPassively) {
+            shutdownInputIfAllDataIsRead();
+        }
+
+        if (receiveWindowHasOpened()) {
+            scheduleAck();
+        }
 
-            synchronized (receivedSegmentsQueueMap) {
-                receivedSegmentsQueueMap.wait();
+        return fetched;
+    }
+
+    /**
+     * Copies as much data received in order as {@code dst} has room for into it without blocking.
+     * @return the number of bytes copied, -1 if the input is shut down and all the data is read
+     */
+    int readData(ByteBuffer dst)
+            throws IOException {
+        checkAborted();
+        if (isClosed() || closePending.get() && !finReceived) throw new IOException("Socket closed");
+        int n;
+
+        receiveLock.lock();
+        try {
+            n = receiveBuffer.take(dst);
+            if (n == 0 && shutIn) {
+                return -1;
             }
+        } finally {
+            receiveLock.unlock();
+        }
+
+        if (closingPassively) {
+            shutdownInputIfAllDataIsRead();
         }
 
-        synchronized (receivedSegmentsQueueMap) {
-            receivedSegmentsQueueMap.notifyAll();
+        if (receiveWindowHasOpened()) {
+            try {
+                scheduleAck();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
         }
 
-        return fetched.getData();
+        return n;
+    }
+
+    /**
+     * @return whether {@link #readData} would return at once with something else than 0
+     */
+    boolean hasDataToRead() {
+        return bufferedData() > 0 || shutIn || isClosedOrPending() && !finReceived || abortReason != null;
+    }
+
+    /**
+     * Sets the listener the communicator runs, on its own thread, when data arrives,
+     * the input is shut down or the socket is closed. It must not block.
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener() {
+        Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
 
+    /**
+     * Tells whether reading has freed enough of the receive buffer to update the peer on it:
+     * a segment or half of the buffer, whichever is less (receiver-side silly window syndrome
+     * avoidance of RFC 1122), so the peer isn't flooded with tiny window updates.
+     */
+    private boolean receiveWindowHasOpened() {
+        receiveLock.lock();
+        try {
+            return receiveWindow() - advertisedWindow >= Math.min(TOUOutputStream.MAX_SEGMENT_SIZE, windowSize / 2);
+        } finally {
+            receiveLock.unlock();
+        }
     }
 
+    /**
+     * Sends the buffered data if the send window, the congestion window and the peer's
+     * receive window have room for it, piggybacking the pending acknowledgement and
+     * the current receive window. If there is no data to carry it, a pending acknowledgement is sent alone.
+     * With {@link TOUSocketOptions#TOU_COALESCE} set, as many segments as fit in a datagram are sent at once.
+     */
     void flushAndSendIfAvailable()
             throws InterruptedException {
-        if (out == null) return;
-        int available = out.available();
-        if (available <= 0) return;
-        TCPSegment tcpSegment = out.flushIntoSegment();
-        TOUSegment dataSegment = new TOUSegment(tcpSegment, local, remote);
-        Integer ack = ackQueue.poll();
-        if (ack != null) {
-            dataSegment.setACK(true).setACK(ack);
+        if (sendWindow == null) return;
+        List<TOUSegment> segments = new ArrayList<>(1);
+        int room = Transport.MAX_DATAGRAM_SIZE;
+        TOUSegment dataSegment;
+        while ((dataSegment = nextDataSegment(room)) != null) {
+            segments.add(dataSegment);
+            room -= dataSegment.length();
+            if (!coalesce) break;
+        }
+        if (!segments.isEmpty()) {
+            try {
+                transmit(segments);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (out.available() > 0) {
+                // the rest of the buffer goes into the next segments
+                communicator.scheduleFlush(this);
+            }
+        } else if (ackPending.get()) {
+            ackSent();
+            TOUSegment ack = segmentFactory.create(ACK, sendWindow.getNextSEQ(), getReceiveNextSEQ(), getSACKBlocks());
+            ack.setWindow(advertiseWindow());
+            communicator.sendOnce(ack);
         }
-        sendDataFutureTasks.put(dataSegment.getSEQ(), sendRepeatedly(dataSegment, DEFAULT_SEGMENT_TIMEOUT));
     }
 
-    int getInitialReadSEQ() {
-        return initialReadSEQ;
+    /**
+     * Flushes the next data segment from the output stream into the send window
+     * if the windows have room for it.
+     * @param room the size the segment has to fit in, ignored without {@link TOUSocketOptions#TOU_COALESCE}
+     * @return the segment or {@code null} if there is no data or no room for it
+     */
+    private TOUSegment nextDataSegment(int room) {
+        int available = out == null ? 0 : Math.min(out.available(), TOUOutputStream.MAX_SEGMENT_SIZE);
+        if (available == 0 || !sendWindow.canSend(available, congestion.getWindow())) {
+            return null;
+        }
+        int[] sackBlocks = getSACKBlocks();
+        int optionsSize = TCPSegment.sackOptionSize(sackBlocks.length / 2);
+        if (coalesce && TCPSegment.HEADER_SIZE + optionsSize + available > room) {
+            return null;
+        }
+        ackSent();
+        TCPSegment tcpSegment = out.flushIntoSegment(optionsSize);
+        TOUSegment dataSegment = new TOUSegment(tcpSegment, local, remote);
+        dataSegment.setACK(true).setACK(getReceiveNextSEQ());
+        dataSegment.setSACKBlocks(sackBlocks);
+        dataSegment.setWindow(advertiseWindow());
+        dataSegment.setTimeout(RETRANSMISSION_TIMEOUT);
+        synchronized (sendWindow) {
+            sendWindow.add(dataSegment);
+            communicator.timingWheel.armIfDisarmed(retransmissionTimer, rto.get(), NANOSECONDS);
+        }
+        return dataSegment;
     }
 
     int getInitialWriteSEQ() {
@@ -0,0 +1,81 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import java.net.SocketOptions;
+
+/**
+ * Identifiers of options specific to {@link TOUSocketImpl}. They are set and queried
+ * with {@link TOUSocketImpl#setOption(int, Object)} and {@link TOUSocketImpl#getOption(int)}
+ * the same way as the standard {@link SocketOptions}. Options set on a server socket
+ * are inherited by the sockets it accepts.
+ */
+public final class TOUSocketOptions {
+    /**
+     * Maximum number of unacknowledged bytes in flight and the size of the receive buffer
+     * advertised to the peer, an {@link Integer}.
+     */
+    public static final int TOU_WINDOW_SIZE = 0x5001;
+
+    /**
+     * Congestion control algorithm, a {@link String}: {@code "newreno"} (the default) or {@code "cubic"}.
+     * Setting it on a connected socket restarts congestion control with the new algorithm.
+     */
+    public static final int TOU_CONGESTION_CONTROL = 0x5002;
+
+    /**
+     * Current congestion window in bytes, an {@link Integer}. Read-only.
+     */
+    public static final int TOU_CONGESTION_WINDOW = 0x5003;
+
+    /**
+     * Current slow start threshold in bytes, an {@link Integer}. Read-only.
+     */
+    public static final int TOU_SLOW_START_THRESHOLD = 0x5004;
+
+    /**
+     * The UDP socket implementation, a {@link String}: {@code "socket"} (the default) for a
+     * {@link java.net.DatagramSocket} or {@code "channel"} for a {@link java.nio.channels.DatagramChannel}
+     * receiving into a direct buffer. Must be set before the socket is bound.
+     */
+    public static final int TOU_TRANSPORT = 0x5005;
+
+    /**
+     * Whether the socket runs on the event loops shared by the whole process, a {@link Boolean},
+     * {@code false} by default, {@code true} for {@link TOUAsyncSocket} and {@link TOUAsyncServerSocket}.
+     * Such a socket needs no internal threads of its own and always uses the {@code "channel"}
+     * {@link #TOU_TRANSPORT}. Must be set before the socket is bound.
+     */
+    public static final int TOU_EVENT_LOOP = 0x5006;
+
+    /**
+     * The number of UDP sockets a server socket receives through, an {@link Integer}, 1 by default.
+     * More than one are bound to the same port with {@code SO_REUSEPORT}, so that the kernel spreads
+     * the connections among them and their segments are handled on several cores.
+     * Must be set before the socket is bound, connecting sockets always use one.
+     */
+    public static final int TOU_RECEIVE_SHARDS = 0x5007;
+
+    /**
+     * Whether segments to the peer are bundled into as few datagrams as they fit in, a {@link Boolean},
+     * {@code false} by default. Data segments the flusher sends at once and segments retransmitted
+     * at once are bundled, saving a datagram's overhead per segment for small messages.
+     * Every socket unpacks bundled datagrams whether the option is set or not.
+     */
+    public static final int TOU_COALESCE = 0x5008;
+
+    /**
+     * Whether the internal threads of the socket are virtual threads, a {@link Boolean}, {@code false} by default.
+     * Meant for servers running a virtual thread per connection: the socket makes them wait on locks, never
+     * on monitors, so they don't pin their carriers. Requires a JVM with virtual threads and has no effect
+     * with {@link #TOU_EVENT_LOOP}. Must be set before the socket is bound.
+     */
+    public static final int TOU_VIRTUAL_THREADS = 0x5009;
+
+    /**
+     * Whether a server socket answers SYNs with SYN cookies, a {@link Boolean}, {@code false} by default.
+     * It then keeps no state for a connection until the client completes the handshake,
+     * so a flood of SYNs doesn't fill the backlog. Must be set before the server socket listens.
+     */
+    public static final int TOU_SYN_COOKIES = 0x500A;
+
+    private TOUSocketOptions() {}
+}
@@ -0,0 +1,92 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * <p>
+ *     SYN cookies: the sequence number of a SYN-ACK that carries the state of the handshake,
+ *     so a listening socket keeps nothing for a SYN it has answered. The ACK completing
+ *     the handshake acknowledges the cookie, and the cookie is checked against the ACK's
+ *     address and sequence number before the connection is made.
+ * </p>
+ *
+ * <p>
+ *     A cookie is laid out as in Linux: the top {@value #TIME_BITS} bits count time in slots
+ *     of about a minute, the next {@value #WINDOW_BITS} bits hold the peer's window rounded down
+ *     to a power of two, and the rest is a MAC of the client's address, its initial sequence number,
+ *     the time slot and the window under a secret key. A cookie is valid in its time slot and the next one.
+ * </p>
+ */
+class TOUSynCookies {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int TIME_BITS = 5;
+    private static final int WINDOW_BITS = 4;
+    private static final int MAC_BITS = Integer.SIZE - TIME_BITS - WINDOW_BITS;
+    private static final int TIME_SLOT_SHIFT = 36; // nanoseconds, about 69 seconds
+    private static final int MIN_WINDOW_SHIFT = 10;
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac = ThreadLocal.withInitial(this::newMac);
+
+    TOUSynCookies() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+        // loading the provider takes long the first time, better at listen than at the first SYN
+        mac.get();
+    }
+
+    /**
+     * @param isn the initial sequence number of the SYN
+     * @param window the window the SYN advertises
+     * @return the sequence number of the SYN-ACK
+     */
+    int create(InetSocketAddress client, int isn, int window) {
+        int time = timeSlot();
+        int windowShift = Math.max(0, Math.min(31 - Integer.numberOfLeadingZeros(Math.max(window, 1)) - MIN_WINDOW_SHIFT,
+                (1 << WINDOW_BITS) - 1));
+        return (time & (1 << TIME_BITS) - 1) << WINDOW_BITS + MAC_BITS
+                | windowShift << MAC_BITS
+                | mac(client, isn, time, windowShift);
+    }
+
+    /**
+     * Checks the cookie an ACK completing a handshake acknowledges.
+     * @param isn the initial sequence number of the SYN, the one before the ACK's
+     * @return the peer's window encoded in the cookie or -1 if the cookie isn't valid
+     */
+    int check(InetSocketAddress client, int isn, int cookie) {
+        int now = timeSlot();
+        int age = (now - (cookie >>> WINDOW_BITS + MAC_BITS)) & (1 << TIME_BITS) - 1;
+        if (age > 1) return -1;
+        int windowShift = cookie >>> MAC_BITS & (1 << WINDOW_BITS) - 1;
+        if (mac(client, isn, now - age, windowShift) != (cookie & (1 << MAC_BITS) - 1)) return -1;
+        return 1 << windowShift + MIN_WINDOW_SHIFT;
+    }
+
+    private static int timeSlot() {
+        return (int) (System.nanoTime() >>> TIME_SLOT_SHIFT);
+    }
+
+    private int mac(InetSocketAddress client, int isn, int time, int windowShift) {
+        byte[] address = client.getAddress().getAddress();
+        ByteBuffer message = ByteBuffer.allocate(address.length + 14)
+                .put(address).putShort((short) client.getPort()).putInt(isn).putInt(time).putInt(windowShift);
+        return ByteBuffer.wrap(mac.get().doFinal(message.array())).getInt() & (1 << MAC_BITS) - 1;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac m = Mac.getInstance(ALGORITHM);
+            m.init(key);
+            return m;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ru.nsu.ccfit.bogush.net.tou.socket;
+
+import ru.nsu.ccfit.bogush.net.tou.segment.TOUSegment;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * <p>
+ *     The UDP socket a {@link TOUSharedCommunicator} sends and receives segments through.
+ * </p>
+ *
+ * <p>
+ *     {@link #receive(InetSocketAddress)} is called by one thread at a time. It returns a segment
+ *     that is a view over a buffer taken from the transport's pool of {@value #RECEIVE_BUFFER_SIZE}-byte
+ *     buffers. The receiver releases the segment once it has handled it, whoever keeps it longer
+ *     has to {@link TOUSegment#retain() retain} it and release it when done.
+ *     {@link #send(TOUSegment)} may be called by several threads at once.
+ * </p>
+ *
+ * Implementations are selected by name with {@link TOUSocketOptions#TOU_TRANSPORT}.
+ */
+interface Transport {
+    /*
+     * A segment is at most TOUOutputStream.MAX_SEGMENT_SIZE bytes of data after a header with options
+     * that the data offset octet limits to 255 bytes. Longer datagrams are truncated, and a truncated
+     * segment is dropped because it has less data than its header claims.
+     */
+    int RECEIVE_BUFFER_SIZE = 1<<11;
+    int RECEIVE_POOL_CAPACITY = 64; // buffers kept for reuse
+    /*
+     * An Ethernet MTU less the IP and UDP headers. Small segments to the same peer are bundled
+     * into datagrams up to this size, there is no path MTU discovery.
+     */
+    int MAX_DATAGRAM_SIZE = 1500 - 20 - 8;
+
+    /**
+     * Blocks until a datagram that can hold a segment is received. Shorter datagrams are dropped.
+     * @return the segment addressed from the sender to {@code local}, it holds a pooled buffer
+     */
+    TOUSegment receive(InetSocketAddress local)
+            throws IOException;
+
+    void send(TOUSegment segment)
+            throws IOException;
+
+    /**
+     * Restricts the transport to exchange datagrams with the {@code remote} address only.
+     */
+    void connect(InetSocketAddress remote)
+            throws IOException;
+
+    InetSocketAddress getLocalSocketAddress();
+
+    boolean isClosed();
+
+    void close();
+
+    String getName();
+
+    /**
+     * @param reusePort whether to set {@code SO_REUSEPORT}, so that more transports can be bound to the address
+     */
+    static Transport open(String name, InetSocketAddress address, boolean reusePort)
+            throws IOException {
+        switch (name) {
+            case DatagramSocketTransport.NAME:
+                return new DatagramSocketTransport(address, reusePort);
+            case DatagramChannelTransport.NAME:
+                return new DatagramChannelTransport(address, reusePort);
+        }
+        throw new SocketException("Unknown transport: " + name);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.nsu.ccfit.bogush.util.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>
+ *     A bounded pool of byte buffers of the same size. Acquiring never blocks: when the pool
+ *     is empty a new buffer is allocated. A released buffer is kept for reuse unless the pool
+ *     already holds {@code capacity} buffers, then it is left to the garbage collector.
+ * </p>
+ *
+ * <p>
+ *     Once the pool has grown to the number of buffers in use at a time, acquiring
+ *     and releasing allocate nothing.
+ * </p>
+ */
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private final boolean direct;
+
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be positive");
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the {@code buffer} to the pool. It must not be used after that.
+     */
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
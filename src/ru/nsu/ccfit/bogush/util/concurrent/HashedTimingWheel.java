@@ -0,0 +1,209 @@
+package ru.nsu.ccfit.bogush.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Hashed timing wheel (Varghese &amp; Lauck). Time is divided into ticks of fixed duration,
+ *     and a timeout due at tick {@code t} is kept in bucket {@code t mod wheelSize} together
+ *     with the number of full wheel rounds left before it is due.
+ * </p>
+ *
+ * <p>
+ *     Timeouts are intrusive: a {@link Timeout} is a list node allocated once by its owner
+ *     and re-armed as many times as needed, so arming and cancelling are O(1) and allocate
+ *     nothing. The wheel doesn't have its own thread, somebody has to call {@link #advance()}
+ *     at least once per tick. Expired tasks run in the thread that calls {@link #advance()}.
+ * </p>
+ */
+public class HashedTimingWheel {
+    public static class Timeout {
+        private final Runnable task;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        private long remainingRounds;
+        private int bucket = -1;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long tickDuration;
+    private final long startTime = System.nanoTime();
+    private long tick = 0; // the next tick to be processed
+    private int armed = 0; // the number of armed timeouts
+    private long nextDeadlineTick = Long.MAX_VALUE; // no armed timeout is due before it
+    private final Runnable onEarlierDeadline;
+
+    private final Object monitor = new Object();
+
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this(tickDuration, unit, wheelSize, () -> {});
+    }
+
+    /**
+     * @param onEarlierDeadline run, in the thread that arms a timeout, when the timeout is due
+     *     earlier than all the others, so that whoever calls {@link #advance()} can wake up sooner
+     */
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Runnable onEarlierDeadline) {
+        if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be positive");
+        if (wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("Wheel size must be a positive power of two: " + wheelSize);
+        }
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.onEarlierDeadline = onEarlierDeadline;
+    }
+
+    /**
+     * Arms the {@code timeout} to expire after {@code delay}. A timeout that is already armed is re-armed.
+     */
+    public void arm(Timeout timeout, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        long deadlineTick = (deadline + tickDuration - 1) / tickDuration;
+        boolean earlier;
+        synchronized (monitor) {
+            unlink(timeout);
+            deadlineTick = Math.max(deadlineTick, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            link(timeout, (int) (deadlineTick & mask));
+            earlier = deadlineTick < nextDeadlineTick;
+            if (earlier) {
+                nextDeadlineTick = deadlineTick;
+            }
+        }
+        if (earlier) {
+            onEarlierDeadline.run();
+        }
+    }
+
+    /**
+     * Arms the {@code timeout} unless it is already armed.
+     * @return {@code true} if the timeout has been armed by this call
+     */
+    public boolean armIfDisarmed(Timeout timeout, long delay, TimeUnit unit) {
+        synchronized (monitor) {
+            if (timeout.bucket >= 0) return false;
+            arm(timeout, delay, unit);
+            return true;
+        }
+    }
+
+    /**
+     * @return {@code true} if the timeout was armed
+     */
+    public boolean cancel(Timeout timeout) {
+        synchronized (monitor) {
+            return unlink(timeout);
+        }
+    }
+
+    public boolean isArmed(Timeout timeout) {
+        synchronized (monitor) {
+            return timeout.bucket >= 0;
+        }
+    }
+
+    /**
+     * @return the nanoseconds until the earliest armed timeout is due, 0 if it is due already,
+     *     -1 if no timeout is armed. A cancelled timeout may still make it shorter than needed.
+     */
+    public long nanosUntilNextDeadline() {
+        synchronized (monitor) {
+            if (armed == 0) return -1;
+            return Math.max(nextDeadlineTick * tickDuration - (System.nanoTime() - startTime), 0);
+        }
+    }
+
+    /**
+     * Processes every tick that has passed since the previous call and runs the tasks of expired timeouts.
+     * Must not be called concurrently. A task may still run after its timeout has been cancelled or
+     * re-armed by another thread while the expired timeouts were being collected.
+     */
+    public void advance() {
+        Timeout expired = null;
+        synchronized (monitor) {
+            long lastTick = (System.nanoTime() - startTime) / tickDuration;
+            for (; tick <= lastTick; ++tick) {
+                int bucket = (int) (tick & mask);
+                Timeout timeout = buckets[bucket];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        unlink(timeout);
+                        timeout.nextExpired = expired;
+                        expired = timeout;
+                    } else {
+                        --timeout.remainingRounds;
+                    }
+                    timeout = next;
+                }
+            }
+            if (nextDeadlineTick < tick) {
+                nextDeadlineTick = findNextDeadlineTick();
+            }
+        }
+
+        while (expired != null) {
+            Timeout next = expired.nextExpired;
+            expired.nextExpired = null;
+            try {
+                expired.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            expired = next;
+        }
+    }
+
+    /**
+     * Looks for the earliest armed timeout bucket by bucket starting from the next tick,
+     * the search stops at the first timeout due in the current round.
+     */
+    private long findNextDeadlineTick() {
+        long next = Long.MAX_VALUE;
+        for (long t = tick; armed > 0 && t < tick + buckets.length && next > t; ++t) {
+            for (Timeout timeout = buckets[(int) (t & mask)]; timeout != null; timeout = timeout.next) {
+                next = Math.min(next, t + timeout.remainingRounds * buckets.length);
+            }
+        }
+        return next;
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        Timeout head = buckets[bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.bucket = bucket;
+        ++armed;
+    }
+
+    private boolean unlink(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        if (timeout.prev == null) {
+            buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+        if (--armed == 0) {
+            nextDeadlineTick = Long.MAX_VALUE;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package ru.nsu.ccfit.bogush.util.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ *     Creates virtual threads where the JVM has them (Java 21 and later). The sources don't
+ *     require such a JVM, so the API is looked up reflectively once.
+ * </p>
+ *
+ * <p>
+ *     A virtual thread that blocks holding a monitor pins the platform thread that carries it,
+ *     so code meant to run on virtual threads waits on {@link java.util.concurrent.locks.Lock}s instead.
+ * </p>
+ */
+public final class VirtualThreads {
+    private static final ThreadFactory FACTORY = lookUpFactory();
+
+    private VirtualThreads() {}
+
+    public static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * @return a factory of virtual threads or {@code null} if the JVM has none
+     */
+    public static ThreadFactory factory() {
+        return FACTORY;
+    }
+
+    private static ThreadFactory lookUpFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}